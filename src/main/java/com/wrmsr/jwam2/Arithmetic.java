@@ -0,0 +1,107 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * Arithmetic.java contains the Arithmetic class, the table of the operators
+ * and functions allowed in arithmetic expressions (is/2 and comparisons).
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+// Arithmetic numbers the evaluable functions. The compiler writes an expression in postfix form,
+// e.g. "Y1 Y2 * 3 +" for "A * B + 3", using the names below; Program.decode turns every name into
+// its number, and the WAM's evaluator dispatches on that number. Unary minus is written "neg".
+public final class Arithmetic {
+    public static final int ADD = 0;
+    public static final int SUBTRACT = 1;
+    public static final int MULTIPLY = 2;
+    public static final int DIVIDE = 3;        // "/": truncating for integers, like it always was
+    public static final int INT_DIVIDE = 4;    // "//"
+    public static final int MOD = 5;           // result has the sign of the divisor
+    public static final int REM = 6;           // result has the sign of the dividend, same as "%"
+    public static final int MIN = 7;
+    public static final int MAX = 8;
+    public static final int POWER = 9;         // "**" and "^"
+    public static final int SHIFT_RIGHT = 10;
+    public static final int SHIFT_LEFT = 11;
+    public static final int AND = 12;          // "/\"
+    public static final int OR = 13;           // "\/"
+    public static final int XOR = 14;
+    public static final int ATAN2 = 15;
+    public static final int GCD = 16;
+    public static final int NEGATE = 17;
+    public static final int ABS = 18;
+    public static final int SIGN = 19;
+    public static final int NOT = 20;          // "\", bitwise complement
+    public static final int SQRT = 21;
+    public static final int SIN = 22;
+    public static final int COS = 23;
+    public static final int TAN = 24;
+    public static final int ASIN = 25;
+    public static final int ACOS = 26;
+    public static final int ATAN = 27;
+    public static final int EXP = 28;
+    public static final int LOG = 29;
+    public static final int FLOAT = 30;
+    public static final int INTEGER = 31;      // rounds to the nearest integer
+    public static final int FLOAT_INTEGER_PART = 32;
+    public static final int FLOAT_FRACTIONAL_PART = 33;
+    public static final int TRUNCATE = 34;
+    public static final int ROUND = 35;
+    public static final int CEILING = 36;
+    public static final int FLOOR = 37;
+    public static final int PI = 38;
+    public static final int E = 39;
+
+    // name and arity of every function, indexed by its number; several names may share a number
+    private static final String[] NAMES = {
+            "+", "-", "*", "/", "//", "mod", "rem", "min", "max", "**", ">>", "<<", "/\\", "\\/", "xor",
+            "atan2", "gcd", "neg", "abs", "sign", "\\", "sqrt", "sin", "cos", "tan", "asin", "acos", "atan",
+            "exp", "log", "float", "integer", "float_integer_part", "float_fractional_part", "truncate",
+            "round", "ceiling", "floor", "pi", "e"};
+    private static final int[] ARITIES = {
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+            2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 0, 0};
+
+    private Arithmetic() {
+    }
+
+    // lookup returns the number of the function name with the given arity, -1 if there is none
+    public static int lookup(String name, int arity) {
+        if (arity == 2) {
+            if (name.compareTo("atan") == 0) {
+                return ATAN2;
+            }
+            if (name.compareTo("^") == 0) {
+                return POWER;
+            }
+            if (name.compareTo("%") == 0) {
+                return REM;
+            }
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((ARITIES[i] == arity) && (NAMES[i].compareTo(name) == 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // lookup returns the number of a function as written in postfix code, i.e. by its own name
+    public static int lookup(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].compareTo(name) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int arity(int function) {
+        return ARITIES[function];
+    }
+
+    public static String name(int function) {
+        return NAMES[function];
+    }
+}
@@ -0,0 +1,50 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * AtomTable.java contains the AtomTable class, the global table of all atoms
+ * (symbolic constants) known to any WAM.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// AtomTable maps every atom to a unique number once, so that constants can be stored and compared
+// as ints. Atoms are never removed. Lookups of known atoms do not lock, new atoms are added under
+// the class lock, so several WAMs may share the table.
+public final class AtomTable {
+    private static final ConcurrentHashMap numbers = new ConcurrentHashMap();  // atom -> its number (Integer)
+    private static volatile String[] names = new String[1024];                 // number -> atom
+    private static int count = 0;
+
+    private AtomTable() {
+    }
+
+    // returns the number of atom s, adding it to the table if it is new
+    public static int intern(String s) {
+        Integer number = (Integer) numbers.get(s);
+        if (number != null) {
+            return number.intValue();
+        }
+        synchronized (AtomTable.class) {
+            number = (Integer) numbers.get(s);
+            if (number == null) {
+                String[] table = names;
+                if (count == table.length) {
+                    String[] newTable = new String[count * 2];
+                    System.arraycopy(table, 0, newTable, 0, count);
+                    table = newTable;
+                }
+                table[count] = s;
+                names = table;
+                number = new Integer(count++);
+                numbers.put(s, number);
+            }
+        }
+        return number.intValue();
+    }
+
+    // returns the atom with the given number
+    public static String name(int number) {
+        return names[number];
+    }
+}
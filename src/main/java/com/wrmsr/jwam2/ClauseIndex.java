@@ -0,0 +1,135 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * ClauseIndex.java contains the ClauseIndex class, which implements argument
+ * indexing for the switch_on_constant and switch_on_structure instructions
+ * and for calls binding other arguments of large procedures.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.math.BigInteger;
+import java.util.Vector;
+
+// ClauseIndex maps the key of a call's argument to the clauses of a procedure that may match it.
+// For the first argument, every clause carries its own key as the last operand of its try_me_else,
+// retry_me_else, trust_me or noop statement: a constant, "f/n" for a structure, "." for a list or
+// "_" if the first argument is a variable. The keys of other arguments are the constants of the
+// clause heads' get_constant statements. The clause list is taken from the chain the first time it
+// is needed, and the table of an argument (see KeyTable) is built the first time a call binds that
+// argument.
+public class ClauseIndex {
+    public static final String WILDCARD = "_";
+    public static final int JIT_THRESHOLD = 8;  // minimum number of clauses for indexing other arguments on demand
+
+    private final Program program;
+    private final int firstClause;  // line of the procedure's first clause, -1 if there is none
+    private int arity;              // arity of the procedure, -1 if unknown
+    private Vector clauses;         // lines (Integer) of the procedure's clauses, null until needed
+    private Vector tables;          // KeyTable per argument, holding lines, null entries until needed
+
+    public ClauseIndex(Program aProgram, int aFirstClause) {
+        program = aProgram;
+        firstClause = aFirstClause;
+    }
+
+    public int getFirstClause() {
+        return firstClause;
+    }
+
+    public int getArity() {
+        if (clauses == null) {
+            build();
+        }
+        return arity;
+    }
+
+    // returns the number of clauses
+    public int size() {
+        if (clauses == null) {
+            build();
+        }
+        return clauses.size();
+    }
+
+    // lookup returns the lines of the clauses that may match the given key (see KeyTable) in the given
+    // argument position
+    public ClauseList lookup(int argument, int kind, long value) {
+        if (clauses == null) {
+            build();
+        }
+        while (tables.size() <= argument) {
+            tables.addElement(null);
+        }
+        KeyTable table = (KeyTable) tables.elementAt(argument);
+        if (table == null) {
+            table = new KeyTable();
+            for (int i = 0; i < clauses.size(); i++) {
+                int line = ((Integer) clauses.elementAt(i)).intValue();
+                table.add(keyOf(program, line, argument), line);
+            }
+            tables.setElementAt(table, argument);
+        }
+        return table.lookup(kind, value);
+    }
+
+    // constantKey returns the key of constant s, spelling numbers the way a bound argument's value reads,
+    // so that e.g. "007" and "7" or "1.50" and "1.5" find the same clauses
+    public static String constantKey(String s) {
+        switch (Wam.numberKind(s)) {
+            case Wam.INT:
+                return Long.toString(Long.parseLong(s));
+            case Wam.BIG:
+                return new BigInteger(s).toString();
+            case Wam.FLT:
+                return Double.toString(Double.parseDouble(s));
+            default:
+                return s;
+        }
+    }
+
+    private static boolean isChained(Statement s) {
+        return (s.operator == Statement.opTryMeElse) || (s.operator == Statement.opRetryMeElse);
+    }
+
+    // keyOf returns the key of the clause whose header is at line for the given argument position
+    static String keyOf(Program program, int line, int argument) {
+        Statement s = program.getStatement(line);
+        if (argument == 0) {
+            return isChained(s) ? s.arg3 : s.arg2;
+        }
+        // look for the head's get_constant, which comes before the first goal of the body
+        String register = "A" + argument;
+        for (int i = line + 1; i < program.getStatementCount(); i++) {
+            s = program.getStatement(i);
+            if ((s.getLabel().length() > 0) || (s.operator == Statement.opCall) || (s.operator == Statement.opExecute) ||
+                    (s.operator == Statement.opProceed)) {
+                break;
+            }
+            if ((s.operator == Statement.opGetConstant) && (s.arg2.compareTo(register) == 0)) {
+                return ((s.arg1.indexOf(' ') < 0) && (s.arg1.length() > 0)) ? constantKey(s.arg1) : WILDCARD;
+            }
+        }
+        return WILDCARD;
+    }
+
+    private void build() {
+        clauses = new Vector();
+        tables = new Vector();
+        arity = -1;
+        int line = firstClause;
+        while ((line >= 0) && (line < program.getStatementCount())) {
+            Statement s = program.getStatement(line);
+            if ((!isChained(s)) && (s.operator != Statement.opTrustMe) && (s.operator != Statement.opNoOp)) {
+                break;
+            }
+            if (clauses.size() == 0) {
+                arity = Program.arity(isChained(s) ? s.arg2 : s.arg1);
+            }
+            clauses.addElement(new Integer(line));
+            if (!isChained(s)) {
+                break;
+            }
+            line = s.jump;
+        }
+    }
+}
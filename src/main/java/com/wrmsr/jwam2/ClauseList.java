@@ -0,0 +1,31 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * ClauseList.java contains the ClauseList class, a list of clauses handed out
+ * by the argument indexes of ClauseIndex and Procedure.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+// A ClauseList holds clauses in clause order: lines for a ClauseIndex, clause numbers for a Procedure.
+// Lists only ever grow, so the first size entries of numbers stay the same once a call has taken them
+public class ClauseList {
+    public int[] numbers = new int[4];
+    public int size;
+
+    void add(int clause) {
+        if (size == numbers.length) {
+            int[] newNumbers = new int[size * 2];
+            System.arraycopy(numbers, 0, newNumbers, 0, size);
+            numbers = newNumbers;
+        }
+        numbers[size++] = clause;
+    }
+
+    ClauseList copy() {
+        ClauseList result = new ClauseList();
+        for (int i = 0; i < size; i++) {
+            result.add(numbers[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * CodeCache.java contains the CodeCache class, which keeps the code compiled
+ * from Prolog files in a directory, so that consulting an unchanged file does
+ * not need to compile it again.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Vector;
+
+// A CodeCache entry holds the code of one Prolog file, clause by clause, as PrologCompiler appends
+// it to the program. Entries are named by the SHA-256 hash of the compiler version (see version())
+// and the file's content, so an entry is never used for a changed file or by a compiler generating
+// other code. An entry is written to a temporary file first and only renamed when it is complete.
+public class CodeCache {
+    public static final int MAGIC = 0x57414d43;  // "WAMC"
+
+    // the classes generating the code of a clause, whose class files are part of the version
+    private static final Class[] GENERATOR = {
+        Compiler.class, PrologCompiler.class, CompilerStructure.class, Statement.class, Arithmetic.class,
+        Tokenizer.class, TokenList.class
+    };
+    private static String version;  // see version(), null until needed
+
+    private final File directory;
+    private File entry;             // entry being written, null if there is none
+    private File temporary;         // file it is written to until it is complete
+    private DataOutputStream out;
+
+    public CodeCache(String aDirectory) {
+        directory = new File(aDirectory);
+    }
+
+    // version returns the version of the generated code: PrologCompiler.VERSION followed by the hash of
+    // the code generator's class files. So a rebuilt compiler does not take the entries of another
+    // one, even if VERSION has not been changed; VERSION covers the format of the entries
+    public static synchronized String version() throws IOException {
+        if (version == null) {
+            MessageDigest digest = sha256();
+            byte[] buffer = new byte[65536];
+            for (int i = 0; i < GENERATOR.length; i++) {
+                InputStream in = GENERATOR[i].getResourceAsStream(GENERATOR[i].getSimpleName() + ".class");
+                if (in == null) {
+                    continue;  // e.g. a class loader without resources: VERSION has to do
+                }
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        digest.update(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            version = PrologCompiler.VERSION + "/" + hex(digest.digest()).substring(0, 16);
+        }
+        return version;
+    }
+
+    // key returns the name of the entry for the given file: the hex SHA-256 hash of the compiler
+    // version and the file's content
+    public static String key(String fileName) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(version().getBytes("UTF-8"));
+        digest.update((byte) 0);
+        InputStream in = new FileInputStream(fileName);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static String hex(byte[] hash) {
+        StringBuffer result = new StringBuffer();
+        for (int i = 0; i < hash.length; i++) {
+            result.append(Character.forDigit((hash[i] >> 4) & 15, 16));
+            result.append(Character.forDigit(hash[i] & 15, 16));
+        }
+        return result.toString();
+    }
+
+    // load reads the entry with the given key and appends its clauses to target. Returns false,
+    // with target left unchanged, if there is no such entry or it cannot be read
+    public boolean load(String key, Program target) {
+        File file = new File(directory, key + ".wamc");
+        if (!file.isFile()) {
+            return false;
+        }
+        Vector clauses = new Vector();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            try {
+                if ((in.readInt() != MAGIC) || (in.readUTF().compareTo(version()) != 0)) {
+                    return false;
+                }
+                int count;
+                while ((count = in.readInt()) >= 0) {
+                    Program clause = new Program(target.owner);
+                    for (int i = 0; i < count; i++) {
+                        String label = in.readUTF();
+                        String function = in.readUTF();
+                        String[] operands = new String[in.readShort()];
+                        for (int j = 0; j < operands.length; j++) {
+                            operands[j] = in.readUTF();
+                        }
+                        clause.addStatement(new Statement(label, function, operands));
+                    }
+                    clauses.addElement(clause);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException io) {
+            return false;
+        } catch (RuntimeException e) {
+            // a damaged entry, e.g. with a negative operand count
+            return false;
+        }
+        // the clauses are only appended once the whole entry has been read
+        for (int i = 0; i < clauses.size(); i++) {
+            target.append((Program) clauses.elementAt(i));
+        }
+        return true;
+    }
+
+    // startEntry starts writing the entry with the given key; a failure only means that the
+    // file is not cached
+    public void startEntry(String key) {
+        try {
+            directory.mkdirs();
+            entry = new File(directory, key + ".wamc");
+            temporary = File.createTempFile(key, ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+            out.writeInt(MAGIC);
+            out.writeUTF(version());
+        } catch (IOException io) {
+            abortEntry();
+        }
+    }
+
+    // addClause writes the code of the next clause to the entry being written
+    public void addClause(Program clause) {
+        if (out == null) {
+            return;
+        }
+        try {
+            int count = (clause == null) ? 0 : clause.getStatementCount();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Statement s = clause.getStatement(i);
+                Vector args = s.getArgs();
+                out.writeUTF(s.getLabel());
+                out.writeUTF(s.getFunction());
+                out.writeShort(args.size());
+                for (int j = 0; j < args.size(); j++) {
+                    out.writeUTF((String) args.elementAt(j));
+                }
+            }
+        } catch (IOException io) {
+            // e.g. an operand too long for writeUTF
+            abortEntry();
+        }
+    }
+
+    // finishEntry completes the entry being written and makes it available
+    public void finishEntry() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.writeInt(-1);
+            out.close();
+            out = null;
+            if ((!temporary.renameTo(entry)) && ((!entry.delete()) || (!temporary.renameTo(entry)))) {
+                temporary.delete();
+            }
+        } catch (IOException io) {
+            abortEntry();
+        }
+    }
+
+    // abortEntry drops the entry being written, e.g. if the file turned out to be invalid
+    public void abortEntry() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException io) {
+                // the file is deleted anyway
+            }
+            out = null;
+        }
+        if (temporary != null) {
+            temporary.delete();
+            temporary = null;
+        }
+    }
+}
@@ -4,21 +4,27 @@
  * developed:   December 2001 until February 2002
  *
  * Compiler.java contains the base class Compiler, which both QueryCompiler and
- * PrologCompiler have been derived from. Additionally, it contains a class
- * KeyValue, which is used for implementing mappings from Prolog variable names
- * ("X", "A13", "Name", ...) to WAM variable names ("Y1", "Y2", ...).
+ * PrologCompiler have been derived from. Each clause maps its Prolog variable
+ * names ("X", "A13", "Name", ...) to WAM variable names ("Y1", "Y2", ...).
  ******************************************************************************/
 package com.wrmsr.jwam2;
 
+import java.util.HashMap;
 import java.util.Vector;
 
 public abstract class Compiler {
     Wam owner;
     String errorString;
     String varPrefix;
-    Vector substitutionList;
+    HashMap substitutions;  // Prolog variable name -> WAM variable name, for the clause being compiled
+    int variableCount;      // number of WAM variables the clause uses so far
     private String lastVar;
     private int bodyCalls;
+    private int entryLine;  // line of the clause's try_me_else (or similar) statement, behind an eventual switch header
+    private int bodyDepth;  // nesting depth of the BODY being compiled, 0 outside of any body
+    private String cutVariable;  // variable holding the clause's cut level, null if the clause has no cut (yet)
+    private boolean localCut;    // true while compiling a condition or negated goal, whose cuts stay inside
+    private String cutBarrier;   // variable holding the level local cuts cut back to, null if there is none (yet)
 
     boolean isPredicate(String s) {
         return (isConstant(s) && (!isNumber(s)));
@@ -69,6 +75,11 @@ public abstract class Compiler {
     }
 
     boolean isNumber(String s) {
+        // most tokens cannot start a number, which saves the costly exception for them
+        char c = s.charAt(0);
+        if (((c < '0') || (c > '9')) && (c != '-') && (c != '+') && (c != '.') && (c != 'I') && (c != 'N') && (c > ' ')) {
+            return false;
+        }
         try {
             Float i = new Float(s);
             return true;
@@ -77,28 +88,28 @@ public abstract class Compiler {
         }
     }
 
-    boolean predicate(Vector prog, CompilerStructure struc) {
+    boolean predicate(TokenList prog, CompilerStructure struc) {
         if (prog.size() == 0) {
             return false;
         }
 
-        String q0 = (String) prog.elementAt(0);
+        String q0 = prog.peek(0);
         if (isPredicate(q0)) {
             struc.type = struc.PREDICATE;
             struc.value = q0;
-            prog.removeElementAt(0);
+            prog.skip();
             return true;
         }
 
         return false;
     }
 
-    boolean constant(Vector prog, CompilerStructure struc) {
+    boolean constant(TokenList prog, CompilerStructure struc) {
         if (prog.size() == 0) {
             return false;
         }
 
-        String q0 = (String) prog.elementAt(0);
+        String q0 = prog.peek(0);
         if (isConstant(q0)) {
             struc.type = struc.CONSTANT;
             if (q0.charAt(0) == '\'') {
@@ -106,44 +117,43 @@ public abstract class Compiler {
             } else {
                 struc.value = q0;
             }
-            prog.removeElementAt(0);
+            prog.skip();
             return true;
         }
 
-        Vector oldProg = (Vector) prog.clone();
+        int mark = prog.mark();
         if ((token(prog, "[")) && (token(prog, "]"))) {
             struc.type = struc.CONSTANT;
             struc.value = "[]";
             return true;
         }
 
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    boolean variable(Vector prog, CompilerStructure struc) {
+    boolean variable(TokenList prog, CompilerStructure struc) {
         if (prog.size() == 0) {
             return false;
         }
 
-        String q0 = (String) prog.elementAt(0);
+        String q0 = prog.peek(0);
         if (isVariable(q0)) {
             struc.type = struc.VARIABLE;
             struc.value = q0;
-            prog.removeElementAt(0);
+            prog.skip();
             return true;
         }
 
         return false;
     }
 
-    boolean structure(Vector prog, CompilerStructure struc) {
+    boolean structure(TokenList prog, CompilerStructure struc) {
         if (prog.size() == 0) {
             return false;
         }
 
-        Vector oldProg = (Vector) prog.clone();
+        int mark = prog.mark();
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
         struc.type = struc.STRUCTURE;
@@ -152,23 +162,21 @@ public abstract class Compiler {
             return true;
         }
 
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         if ((variable(prog, struc.head)) && (token(prog, "(")) && (list(prog, struc.tail)) && (token(prog, ")"))) {
             return true;
         }
 
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    boolean element(Vector prog, CompilerStructure struc) {
+    boolean element(TokenList prog, CompilerStructure struc) {
         if (prog.size() == 0) {
             return false;
         }
 
-        Vector oldProg = (Vector) prog.clone();
+        int mark = prog.mark();
         if (structure(prog, struc)) {
             return true;
         }
@@ -185,33 +193,32 @@ public abstract class Compiler {
             return true;
         }
 
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    boolean isNextToken(Vector prog, String tok) {
+    boolean isNextToken(TokenList prog, String tok) {
         if (prog.size() == 0) {
             return false;
         }
 
-        return tok.compareTo((String) prog.elementAt(0)) == 0;
+        return tok.compareTo(prog.peek(0)) == 0;
     }
 
-    boolean token(Vector prog, String tok) {
+    boolean token(TokenList prog, String tok) {
         if (prog.size() == 0) {
             return false;
         }
 
-        if (tok.compareTo((String) prog.elementAt(0)) == 0) {
-            prog.removeElementAt(0);
+        if (tok.compareTo(prog.peek(0)) == 0) {
+            prog.skip();
             return true;
         }
 
         return false;
     }
 
-    boolean atom(Vector prog, CompilerStructure struc) {
+    boolean atom(TokenList prog, CompilerStructure struc) {
         if (constant(prog, struc)) {
             return true;
         }
@@ -219,114 +226,201 @@ public abstract class Compiler {
         return variable(prog, struc);
     }
 
-    boolean expression(Vector prog, CompilerStructure struc) {
-        Vector oldProg = (Vector) prog.clone();
-        struc.type = struc.EXPRESSION;
-        struc.head = new CompilerStructure();
-        struc.tail = new CompilerStructure();
-        int cnt = 1;
-        String tok = "";
-        do {
-            switch (cnt) {
-                case 1:
-                    tok = "+";
-                    break;
-                case 2:
-                    tok = "-";
-                    break;
-                case 3:
-                    tok = "*";
-                    break;
-                case 4:
-                    tok = "/";
-                    break;
-                case 5:
-                    tok = "%";
+    // binary operators of arithmetic expressions, from the lowest to the highest priority level;
+    // all of them are left-associative except for the last level ("**" and "^")
+    private static final String[][] OPERATORS = {
+            {"+", "-", "/\\", "\\/", "xor"},
+            {"*", "/", "//", "mod", "rem", "%", "<<", ">>"},
+            {"**", "^"}};
+
+    boolean expression(TokenList prog, CompilerStructure struc) {
+        if (arithmetic(prog, struc, 0)) {
+            return true;
+        }
+        errorString = "Invalid expression on right side of assignment.";
+        return false;
+    }
+
+    // arithmetic parses an arithmetic expression whose operators have at least the given level into
+    // a tree of EXPRESSION nodes (see CompilerStructure), with numbers, variables and atoms as leaves
+    boolean arithmetic(TokenList prog, CompilerStructure struc, int level) {
+        if (level == OPERATORS.length) {
+            return factor(prog, struc);
+        }
+        int mark = prog.mark();
+        CompilerStructure left = new CompilerStructure();
+        if (arithmetic(prog, left, level + 1)) {
+            String op;
+            while ((op = operator(prog, level)) != null) {
+                CompilerStructure right = new CompilerStructure();
+                if (!arithmetic(prog, right, (level == OPERATORS.length - 1) ? level : level + 1)) {
+                    left = null;
                     break;
+                }
+                left = new CompilerStructure(left.EXPRESSION, Arithmetic.name(Arithmetic.lookup(op, 2)), left, right);
             }
-            if ((atom(prog, struc.head)) && (token(prog, tok)) && (atom(prog, struc.tail))) {
-                struc.value = tok;
+            if (left != null) {
+                copyStructure(struc, left);
                 return true;
             }
-            prog.clear();
-            prog.addAll(oldProg);
-        } while (++cnt <= 4);
-        errorString = "Invalid expression on right side of assignment.";
+        }
+        prog.reset(mark);
+        return false;
+    }
+
+    // operator removes and returns the next token if it is a binary operator of the given level
+    private String operator(TokenList prog, int level) {
+        if (prog.size() == 0) {
+            return null;
+        }
+        String tok = prog.peek(0);
+        for (int i = 0; i < OPERATORS[level].length; i++) {
+            if (tok.compareTo(OPERATORS[level][i]) == 0) {
+                prog.skip();
+                return tok;
+            }
+        }
+        return null;
+    }
+
+    // factor parses an operand: a signed factor, a parenthesized expression, a function call
+    // like "abs(X)" or "max(X, Y)", or a number, variable or atom
+    boolean factor(TokenList prog, CompilerStructure struc) {
+        if (prog.size() == 0) {
+            return false;
+        }
+        int mark = prog.mark();
+        String q0 = prog.peek(0);
+        if ((q0.compareTo("-") == 0) || (q0.compareTo("+") == 0) || (q0.compareTo("\\") == 0)) {
+            prog.skip();
+            CompilerStructure operand = new CompilerStructure();
+            if (factor(prog, operand)) {
+                if (q0.compareTo("+") == 0) {
+                    copyStructure(struc, operand);
+                } else if ((q0.compareTo("-") == 0) && (operand.type == operand.CONSTANT) &&
+                        (Wam.numberKind(operand.value) != Wam.CON)) {
+                    // negative numbers are constants of their own
+                    copyStructure(struc, operand);
+                    struc.value = operand.value.startsWith("-") ? operand.value.substring(1) : "-" + operand.value;
+                } else {
+                    int function = Arithmetic.lookup((q0.compareTo("-") == 0) ? "neg" : q0, 1);
+                    copyStructure(struc, new CompilerStructure(struc.EXPRESSION, Arithmetic.name(function), operand, null));
+                }
+                return true;
+            }
+        } else if (token(prog, "(")) {
+            if ((arithmetic(prog, struc, 0)) && (token(prog, ")"))) {
+                return true;
+            }
+        } else if ((prog.size() > 1) && (prog.peek(1).compareTo("(") == 0) &&
+                ((Arithmetic.lookup(q0, 1) >= 0) || (Arithmetic.lookup(q0, 2) >= 0))) {
+            prog.skip();
+            prog.skip();
+            CompilerStructure first = new CompilerStructure();
+            CompilerStructure second = null;
+            if (arithmetic(prog, first, 0)) {
+                if (token(prog, ",")) {
+                    second = new CompilerStructure();
+                    if (!arithmetic(prog, second, 0)) {
+                        second = null;
+                        first = null;
+                    }
+                }
+                int function = (first == null) ? -1 : Arithmetic.lookup(q0, (second == null) ? 1 : 2);
+                if ((function >= 0) && (token(prog, ")"))) {
+                    copyStructure(struc, new CompilerStructure(struc.EXPRESSION, Arithmetic.name(function), first, second));
+                    return true;
+                }
+            }
+        } else if (atom(prog, struc)) {
+            if ((struc.type == struc.CONSTANT) && (Arithmetic.lookup(struc.value, 0) >= 0)) {
+                copyStructure(struc, new CompilerStructure(struc.EXPRESSION, struc.value, null, null));
+            }
+            return true;
+        }
+        prog.reset(mark);
         return false;
     }
 
-    boolean condition(Vector prog, CompilerStructure struc) {
+    private static void copyStructure(CompilerStructure target, CompilerStructure source) {
+        target.type = source.type;
+        target.value = source.value;
+        target.head = source.head;
+        target.tail = source.tail;
+    }
+
+    boolean condition(TokenList prog, CompilerStructure struc) {
         if (prog == null) return false;
-        Vector oldProg = (Vector) prog.clone();
+        int mark = prog.mark();
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
-        // first type of a condition is a comparison
-        if (atom(prog, struc.head)) {
+        // first type of a condition is a comparison of two arithmetic expressions (or atoms)
+        if (arithmetic(prog, struc.head, 0)) {
             struc.type = struc.COMPARISON;
             if (isNextToken(prog, ">")) {
                 token(prog, ">");
                 if (isNextToken(prog, "=")) {
-                    if ((token(prog, "=")) && (atom(prog, struc.tail))) {
+                    if ((token(prog, "=")) && (arithmetic(prog, struc.tail, 0))) {
                         struc.value = ">=";
                         return true;
                     }
-                } else if (atom(prog, struc.tail)) {
+                } else if (arithmetic(prog, struc.tail, 0)) {
                     struc.value = ">";
                     return true;
                 }
             } else if (isNextToken(prog, "<")) {
                 token(prog, "<");
                 if (isNextToken(prog, "=")) {
-                    if ((token(prog, "=")) && (atom(prog, struc.tail))) {
+                    if ((token(prog, "=")) && (arithmetic(prog, struc.tail, 0))) {
                         struc.value = "<=";
                         return true;
                     }
-                } else if (atom(prog, struc.tail)) {
+                } else if (arithmetic(prog, struc.tail, 0)) {
                     struc.value = "<";
                     return true;
                 }
             } else if (isNextToken(prog, "!")) {
                 token(prog, "!");
-                if ((token(prog, "=")) && (atom(prog, struc.tail))) {
+                if ((token(prog, "=")) && (arithmetic(prog, struc.tail, 0))) {
                     struc.value = "!=";
                     return true;
                 }
             } else if (isNextToken(prog, "\\")) {
                 token(prog, "\\");
-                if ((token(prog, "=")) && (atom(prog, struc.tail))) {
+                if ((token(prog, "=")) && (arithmetic(prog, struc.tail, 0))) {
                     struc.value = "!=";
                     return true;
                 }
             }
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
+        struc.head = new CompilerStructure();
+        struc.tail = new CompilerStructure();
+        CompilerStructure group = new CompilerStructure();
+        if ((token(prog, "(")) && (disjunction(prog, group)) && (token(prog, ")"))) {
+            copyStructure(struc, group);
+            return true;
+        }
+        prog.reset(mark);
         if ((element(prog, struc.head)) && (token(prog, "=")) && (element(prog, struc.tail))) {
             struc.type = struc.UNIFICATION;
             return true;
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         if ((variable(prog, struc.head)) && (token(prog, "is")) && (expression(prog, struc.tail))) {
             struc.type = struc.ASSIGNMENT;
             return true;
         }
-        prog.clear();
-        prog.addAll(oldProg);
-        if ((token(prog, "not")) && (predicate(prog, struc.head))) {
+        prog.reset(mark);
+        CompilerStructure goal = new CompilerStructure();
+        if (((token(prog, "not")) || ((token(prog, "\\")) && (token(prog, "+")))) && (condition(prog, goal))) {
+            // the negated goal is a call, a unification or any parenthesized goal
             struc.type = struc.NOT_CALL;
-            if (isNextToken(prog, "(")) {
-                token(prog, "(");
-                if ((list(prog, struc.tail)) && (token(prog, ")"))) {
-                    return true;
-                }
-            } else {
-                struc.tail = null;
-                return true;
-            }
+            struc.head = goal;
+            struc.tail = null;
+            return true;
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         if (predicate(prog, struc.head)) {
             struc.type = struc.CALL;
             if (isNextToken(prog, "(")) {
@@ -339,8 +433,7 @@ public abstract class Compiler {
                 return true;
             }
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         if (isNextToken(prog, "!")) {
             token(prog, "!");
             struc.type = struc.CUT;
@@ -349,8 +442,42 @@ public abstract class Compiler {
         return false;
     }
 
-    boolean body(Vector prog, CompilerStructure struc) {
-        Vector oldProg = (Vector) prog.clone();
+    // disjunction parses the inside of a parenthesized goal: bodies separated by ";", each of which
+    // may be followed by "->" or "*->" and the then-part of an if-then-else
+    boolean disjunction(TokenList prog, CompilerStructure struc) {
+        int mark = prog.mark();
+        CompilerStructure left = new CompilerStructure();
+        if (body(prog, left)) {
+            String arrow = null;
+            if (token(prog, "->")) {
+                arrow = "->";
+            } else if ((isNextToken(prog, "*")) && (prog.size() > 1) && (prog.peek(1).compareTo("->") == 0)) {
+                prog.skip();
+                prog.skip();
+                arrow = "*->";
+            }
+            CompilerStructure then = new CompilerStructure();
+            if ((arrow == null) || (body(prog, then))) {
+                if (arrow != null) {
+                    left = new CompilerStructure(left.IF_THEN, arrow, left, then);
+                }
+                CompilerStructure right = new CompilerStructure();
+                if (!token(prog, ";")) {
+                    copyStructure(struc, left);
+                    return true;
+                }
+                if (disjunction(prog, right)) {
+                    copyStructure(struc, new CompilerStructure(left.DISJUNCTION, ";", left, right));
+                    return true;
+                }
+            }
+        }
+        prog.reset(mark);
+        return false;
+    }
+
+    boolean body(TokenList prog, CompilerStructure struc) {
+        int mark = prog.mark();
         struc.type = struc.BODY;
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
@@ -365,13 +492,12 @@ public abstract class Compiler {
                 return true;
             }
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    boolean clause(Vector prog, CompilerStructure struc) {
-        Vector oldProg = (Vector) prog.clone();
+    boolean clause(TokenList prog, CompilerStructure struc) {
+        int mark = prog.mark();
         struc.type = struc.CLAUSE;
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
@@ -387,26 +513,32 @@ public abstract class Compiler {
                 return true;
             } else errorString = "Missing \".\" at end of clause.";
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    boolean program(Vector prog, CompilerStructure struc) {
-        struc.type = struc.PROGRAM;
-        struc.head = new CompilerStructure();
-        struc.tail = new CompilerStructure();
-        if (clause(prog, struc.head)) {
-            if (program(prog, struc.tail)) {
+    // program parses clauses up to the end of the tokens or the first one that is no clause; the
+    // PROGRAM chain is built in a loop, as a file may have more clauses than the stack has room for
+    boolean program(TokenList prog, CompilerStructure struc) {
+        CompilerStructure s = struc;
+        CompilerStructure last = null;
+        while (true) {
+            s.type = s.PROGRAM;
+            s.head = new CompilerStructure();
+            s.tail = new CompilerStructure();
+            if (!clause(prog, s.head)) {
+                if (last == null) {
+                    return false;
+                }
+                last.tail = null;
                 return true;
             }
-            struc.tail = null;
-            return true;
+            last = s;
+            s = s.tail;
         }
-        return false;
     }
 
-    boolean head(Vector prog, CompilerStructure struc) {
+    boolean head(TokenList prog, CompilerStructure struc) {
         struc.type = struc.HEAD;
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
@@ -422,8 +554,8 @@ public abstract class Compiler {
         return false;
     }
 
-    boolean list(Vector prog, CompilerStructure struc) {
-        Vector oldProg = (Vector) prog.clone();
+    boolean list(TokenList prog, CompilerStructure struc) {
+        int mark = prog.mark();
         struc.type = struc.LIST;
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
@@ -443,100 +575,220 @@ public abstract class Compiler {
                 return true;
             }
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     }
 
-    Vector stringToList(String text) {
-        int i;
+    TokenList stringToList(String text) {
+        Tokenizer tokenizer = new Tokenizer();
+        tokenizer.feed(text);
+        tokenizer.finish();
+        if (tokenizer.hasFailed()) {
+            return null;
+        }
         Vector result = new Vector();
-        String dummy = "";
+        Vector clause;
+        while ((clause = tokenizer.nextClause()) != null) {
+            result.addAll(clause);
+        }
+        return new TokenList(result);
+    }
 
-        for (i = 0; i < text.length(); i++) {
-            char pos = text.charAt(i);
+    // newVariables starts the variable table of a clause or query
+    void newVariables() {
+        substitutions = new HashMap();
+        variableCount = 0;
+    }
 
-            if (pos == '\'') {
-                if (dummy.length() > 0) {
-                    return null;
-                }
-                dummy = "'";
-                do {
-                    i++;
-                    dummy += text.charAt(i);
-                    if (text.charAt(i) == '\'') {
-                        break;
-                    }
-                } while (i < text.length() - 1);
-
-            } else if (pos != ' ') {
-                if ((pos == '(') ||
-                        (pos == ')') ||
-                        (pos == '[') ||
-                        (pos == ']') ||
-                        (pos == ',') ||
-                        (pos == '.') ||
-                        (pos == '|') ||
-                        (pos == '=') ||
-                        (pos == '<') ||
-                        (pos == '>') ||
-                        (pos == '%') ||
-                        (pos == '\\') ||
-                        (pos == '+') ||
-                        (pos == '-') ||
-                        (pos == '*') ||
-                        (pos == '/')
-                ) {
-                    if (dummy.length() > 0) {
-                        result.addElement(dummy);
-                    }
-                    dummy = "";
-                    result.addElement(dummy + pos);
-                } else {
-                    dummy += pos;
-                }
+    String substituteVariable(String variable) {
+        boolean named = (variable.length() > 0) && (variable.compareTo("_") != 0);
+        if (named) {
+            String wamVar = (String) substitutions.get(variable);
+            if (wamVar != null) {
+                lastVar = wamVar;
+                return lastVar;
+            }
+        }
 
-            } else {
-                if (dummy.length() > 0) {
-                    result.addElement(dummy);
-                }
-                dummy = "";
+        String newVar = varPrefix + new Integer(variableCount++);
+        if (named) {
+            substitutions.put(variable, newVar);
+        }
+        lastVar = newVar;
+        return newVar;
+    }
+
+    boolean firstOccurrence(String variable) {
+        if ((variable.length() > 0) && (variable.compareTo("_") != 0)) {
+            return !substitutions.containsKey(variable);
+        }
+        return true;
+    }
+
+    // indexKey returns the key of a clause's first argument, as used by first argument indexing:
+    // the constant itself, "[]" or "." for lists, "f/n" for structures and "_" for anything a
+    // variable might stand for (or that cannot be written down as a single statement operand)
+    String indexKey(CompilerStructure arg) {
+        String key = ClauseIndex.WILDCARD;
+        if (arg.type == arg.CONSTANT) {
+            key = ClauseIndex.constantKey(arg.value);
+        } else if (arg.type == arg.LIST) {
+            key = (arg.head == null) ? "[]" : ".";
+        } else if ((arg.type == arg.STRUCTURE) && (arg.head.type == arg.CONSTANT)) {
+            int n = 0;
+            CompilerStructure s = arg.tail;
+            while ((s != null) && (s.type == s.LIST) && (s.head != null)) {
+                n++;
+                s = s.tail;
+            }
+            if (s == null) {
+                key = arg.head.value + "/" + n;
             }
         }
+        if ((key.length() == 0) || (key.indexOf(' ') >= 0) || (key.indexOf('\'') >= 0)) {
+            key = ClauseIndex.WILDCARD;
+        }
+        return key;
+    }
 
-        if (dummy.length() > 0) {
-            result.addElement(dummy);
+    // ifThenElse compiles "C -> T ; E" (or "C -> T" if otherwise is null) inline: the condition runs
+    // with a choicepoint leading to the else-part, its first solution cuts back to the barrier taken
+    // before and continues with the then-part. A soft cut ("C *-> T ; E") keeps the condition's
+    // choicepoints and only disables the one of the else-part
+    private void ifThenElse(CompilerStructure ite, CompilerStructure otherwise, Program result) {
+        boolean soft = ite.value.compareTo("*->") == 0;
+        Program condition = local(ite.head, result);
+        Program then = branch(ite.tail, result);
+        Program elsePart = (otherwise == null) ? null : branch(otherwise, result);
+        int c = condition.getStatementCount();
+        int t = then.getStatementCount();
+        if ((soft) && (elsePart == null)) {
+            // without an else-part, "C *-> T" is just "C, T"
+            result.addProgram(condition);
+            result.addProgram(then);
+            return;
+        }
+        String y = substituteVariable("");
+        result.addStatement(new Statement("", "get_barrier", y));
+        if (elsePart == null) {
+            result.addProgram(condition);
+            result.addStatement(new Statement("", "cut", y));
+            result.addProgram(then);
+            return;
         }
+        int e = elsePart.getStatementCount();
+        result.addStatement(new Statement("", "try_me_else", "+" + (soft ? c + t + 5 : c + t + 3), "0"));
+        result.addProgram(condition);
+        if (soft) {
+            result.addStatement(new Statement("", "soft_cut", y, "+" + (t + 2)));
+        } else {
+            result.addStatement(new Statement("", "cut", y));
+        }
+        result.addProgram(then);
+        result.addStatement(new Statement("", "jump", "+" + (soft ? e + 4 : e + 2)));
+        if (soft) {
+            // where the else-choicepoint goes once the condition has succeeded
+            result.addStatement(new Statement("", "trust_me", "0"));
+            result.addStatement(new Statement("", "fail", ""));
+        }
+        result.addStatement(new Statement("", "trust_me", "0"));
+        result.addProgram(elsePart);
+    }
 
-        return result;
+    // local compiles a condition or a negated goal, whose cuts only cut the choicepoints left inside
+    // it: they go back to a barrier taken at its start, behind the choicepoint of the construct
+    private Program local(CompilerStructure part, Program result) {
+        boolean outerLocal = localCut;
+        String outerBarrier = cutBarrier;
+        localCut = true;
+        cutBarrier = null;
+        Program code = branch(part, result);
+        if (cutBarrier != null) {
+            code.addStatementAtPosition(new Statement("", "get_barrier", cutBarrier), 0);
+        }
+        localCut = outerLocal;
+        cutBarrier = outerBarrier;
+        return code;
     }
 
-    String substituteVariable(String variable) {
-        if ((variable.length() > 0) && (variable.compareTo("_") != 0))
-            for (int i = 0; i < substitutionList.size(); i++) {
-                if (variable.compareTo(((KeyValue) substitutionList.elementAt(i)).key) == 0) {
-                    lastVar = ((KeyValue) substitutionList.elementAt(i)).stringValue;
-                    return lastVar;
-                }
+    // branch compiles one part of a control construct. Query variables seen first in that part are
+    // declared in result already, in front of the construct, as the part might never be run
+    private Program branch(CompilerStructure part, Program result) {
+        Program code = structureToCode(part);
+        Program branch = new Program(owner);
+        for (int i = 0; i < code.getStatementCount(); i++) {
+            Statement s = code.getStatement(i);
+            if (s.operator == Statement.opCreateVariable) {
+                result.addStatement(s);
+            } else {
+                branch.addStatement(s);
             }
+        }
+        return branch;
+    }
 
-        String newVar = varPrefix + new Integer(substitutionList.size());
-        substitutionList.addElement(new KeyValue(variable, newVar));
-        lastVar = newVar;
-        return newVar;
+    // operand compiles an element of a structure or list, returning the register that holds it or the
+    // constant itself if it fits into a single statement operand (null if the element cannot be compiled)
+    private String operand(CompilerStructure element, Program result) {
+        if ((element.type == element.CONSTANT) && (element.value.length() > 0) && (element.value.indexOf(' ') < 0) &&
+                (Program.register(element.value) == Program.KIND_NONE)) {
+            return element.value;
+        }
+        Program p = structureToCode(element);
+        if (p == null) {
+            return null;
+        }
+        result.addProgram(p);
+        return (element.type == element.VARIABLE) ? substituteVariable(element.value) : lastVar;
     }
 
-    boolean firstOccurrence(String variable) {
-        if ((variable.length() > 0) && (variable.compareTo("_") != 0)) {
-            for (int i = 0; i < substitutionList.size(); i++) {
-                if (variable.compareTo(((KeyValue) substitutionList.elementAt(i)).key) == 0) {
-                    return false;
-                }
+    // isFlatStructure returns true if struc has an atom as its functor and a proper argument list, so
+    // that put_structure can build it (a variable functor or an argument list with a tail cannot)
+    private boolean isFlatStructure(CompilerStructure struc) {
+        if ((struc.head.type != struc.CONSTANT) || (struc.head.value.length() == 0) || (struc.tail == null)) {
+            return false;
+        }
+        for (CompilerStructure s = struc.tail; s != null; s = s.tail) {
+            if ((s.type != s.LIST) || (s.head == null)) {
+                return false;
             }
         }
         return true;
     }
 
+    // endsWithCall returns true if the last goal of body is a call, so that last call optimization
+    // may turn it into an execute (not if the code of a control construct would follow)
+    private boolean endsWithCall(CompilerStructure body) {
+        while ((body != null) && (body.type == body.BODY)) {
+            while (body.tail != null) {
+                body = body.tail;
+            }
+            body = body.head;
+        }
+        return (body != null) && (body.type == body.CALL);
+    }
+
+    // postfix returns an arithmetic expression as a single operand in postfix form, e.g. "Y1 Y2 * 3 +"
+    // for "A * B + 3", or just "Y1" for "A". Numbers are written in place, other constants are put
+    // into registers by statements added to result, so they may contain blanks
+    private String postfix(CompilerStructure e, Program result) {
+        if (e.type == e.EXPRESSION) {
+            String code = "";
+            if (e.head != null) {
+                code += postfix(e.head, result) + " ";
+            }
+            if (e.tail != null) {
+                code += postfix(e.tail, result) + " ";
+            }
+            return code + e.value;
+        }
+        if ((e.type == e.CONSTANT) && (Wam.numberKind(e.value) != Wam.CON)) {
+            return e.value;
+        }
+        result.addProgram(structureToCode(e));
+        return lastVar;
+    }
+
     // structureToCode takes a CompilerStructure, generated by the parser, and constructs
     // a WAM program from it, recursively
     Program structureToCode(CompilerStructure struc) {
@@ -550,10 +802,25 @@ public abstract class Compiler {
             if (struc.head == null) {
                 return null;
             }
-            result.addProgram(structureToCode(struc.head));
-            result.addProgram(structureToCode(struc.tail));
+            // one clause after the other, adding each clause's code to the result only once
+            for (CompilerStructure s = struc; s != null; s = s.tail) {
+                result.addProgram(structureToCode(s.head));
+            }
 
-        } else if ((struc.type == struc.CALL) || (struc.type == struc.NOT_CALL)) {
+        } else if (struc.type == struc.NOT_CALL) {
+            // negation as failure: if the goal fails, the choicepoint pushed by try_me_else resumes
+            // behind the negation. If it succeeds, cutting back to the barrier drops that choicepoint
+            // (and all left by the goal), so the negation fails
+            String y = substituteVariable("");
+            Program goal = local(struc.head, result);
+            result.addStatement(new Statement("", "get_barrier", y));
+            result.addStatement(new Statement("", "try_me_else", "+" + (goal.getStatementCount() + 3), "0"));
+            result.addProgram(goal);
+            result.addStatement(new Statement("", "cut", y));
+            result.addStatement(new Statement("", "fail", ""));
+            result.addStatement(new Statement("", "trust_me", "0"));
+
+        } else if (struc.type == struc.CALL) {
             bodyCalls++;
             if (struc.tail != null) {
                 CompilerStructure s = struc.tail;
@@ -574,11 +841,7 @@ public abstract class Compiler {
                     s = s.tail;
                 } while (s != null);
             }
-            if (struc.type == struc.CALL) {
-                result.addStatement(new Statement("", "call", struc.head.value));
-            } else {
-                result.addStatement(new Statement("", "not_call", struc.head.value));
-            }
+            result.addStatement(new Statement("", "call", struc.head.value));
 
         } else if (struc.type == struc.UNIFICATION) {
             result.addProgram(structureToCode(struc.head));
@@ -600,13 +863,34 @@ public abstract class Compiler {
             } else {
                 struc.head.value = name + '~' + count;
             }
+            // the arity tells try_me_else how many argument registers a choicepoint has to save
+            int arity = 0;
+            for (CompilerStructure s = struc.tail; s != null; s = s.tail) {
+                arity++;
+            }
+            String key = (arity > 0) ? indexKey(struc.tail.head) : ClauseIndex.WILDCARD;
+            entryLine = 0;
+            if ((count == 1) && (atAll > 1) && (arity > 0)) {
+                // procedures with more than one clause dispatch on their first argument: unbound
+                // arguments try all clauses, constants, lists and structures only those matching
+                result.addStatement(new Statement(name, "switch_on_term", name + "~1", "+1", "+2 +2"));
+                result.addStatement(new Statement("", "switch_on_constant", name + "~1"));
+                result.addStatement(new Statement("", "switch_on_structure", name + "~1"));
+                struc.head.value = name + "~1";
+                entryLine = 3;
+            }
             if (count < atAll) {
                 if (count > 1) {
-                    result.addStatement(new Statement(struc.head.value, "retry_me_else", name + '~' + (count + 1)));
+                    result.addStatement(new Statement(struc.head.value, "retry_me_else", name + '~' + (count + 1), "" + arity, key));
                 } else {
-                    result.addStatement(new Statement(struc.head.value, "try_me_else", name + '~' + (count + 1)));
+                    result.addStatement(new Statement(struc.head.value, "try_me_else", name + '~' + (count + 1), "" + arity, key));
                 }
-            } else result.addStatement(new Statement(struc.head.value, "trust_me", ""));
+            } else if (count > 1) {
+                result.addStatement(new Statement(struc.head.value, "trust_me", "" + arity, key));
+            } else {
+                // a procedure's only clause needs no choicepoint (arity and key are kept for clauses added by assert)
+                result.addStatement(new Statement(struc.head.value, "noop", "" + arity, key));
+            }
             if (struc.tail != null) {
                 CompilerStructure s = struc.tail;
                 int argCount = 0;
@@ -640,7 +924,31 @@ public abstract class Compiler {
             substituteVariable(struc.value);
 
         } else if (struc.type == struc.LIST) {
-            if (struc.head != null) {
+            if ((struc.head != null) && (struc.tail != null) && (struc.tail.type == struc.LIST) && (struc.tail.head != null)) {
+                // lists of two and more elements become a packed segment, built in one step from the
+                // elements' registers or constants, followed by the rest of the list
+                StringBuffer elements = new StringBuffer();
+                CompilerStructure s = struc;
+                while ((s != null) && (s.type == s.LIST) && (s.head != null)) {
+                    String element = operand(s.head, result);
+                    if (element == null) {
+                        return null;
+                    }
+                    elements.append(' ').append(element);
+                    s = s.tail;
+                }
+                String tail;
+                if ((s == null) || (s.type == s.LIST)) {
+                    tail = "[]";
+                } else {
+                    tail = operand(s, result);
+                    if (tail == null) {
+                        return null;
+                    }
+                }
+                result.addStatement(new Statement("", "put_segment", substituteVariable(""), tail, elements.substring(1)));
+                return result;
+            } else if (struc.head != null) {
                 Program p = structureToCode(struc.head);  // first of all, compile the list's head (i.e. its first element)
                 if (p == null) {
                     return null;
@@ -671,6 +979,20 @@ public abstract class Compiler {
             }
 
         } else if (struc.type == struc.STRUCTURE) {
+            if (isFlatStructure(struc)) {
+                // f(X1, .., Xn) is built in one step from its arguments' registers; constants that
+                // fit into a single operand are given right away
+                String args = "";
+                for (CompilerStructure s = struc.tail; s != null; s = s.tail) {
+                    String arg = operand(s.head, result);
+                    if (arg == null) {
+                        return null;
+                    }
+                    args += (args.length() > 0) ? " " + arg : arg;
+                }
+                result.addStatement(new Statement("", "put_structure", substituteVariable(""), struc.head.value, args));
+                return result;
+            }
             result.addProgram(structureToCode(struc.head));
             String headVar = lastVar;
             result.addProgram(structureToCode(struc.tail));
@@ -679,26 +1001,63 @@ public abstract class Compiler {
             return result;
 
         } else if (struc.type == struc.CLAUSE) {
-            substitutionList = new Vector();
+            newVariables();
             bodyCalls = 0;
             result.addProgram(structureToCode(struc.head));
             result.addProgram(structureToCode(struc.tail));
-            if ((substitutionList.size() > 0) || (bodyCalls > 0)) {
-                result.addStatementAtPosition(new Statement("", "allocate", ""), 1);
+            if ((variableCount > 0) || (bodyCalls > 0)) {
+                result.addStatementAtPosition(new Statement("", "allocate", "" + variableCount), entryLine + 1);
+                int last = result.getStatementCount() - 1;
+                Statement s = result.getStatement(last);
+                if ((s.getFunction().compareTo("call") == 0) && (endsWithCall(struc.tail))) {
+                    // last call optimization: drop the environment first, the callee returns to our caller
+                    s.setFunction("execute");
+                    result.addStatementAtPosition(new Statement("", "deallocate", ""), last);
+                    return result;
+                }
                 result.addStatement(new Statement("", "deallocate", ""));
             }
             result.addStatement(new Statement("", "proceed", ""));
 
         } else if (struc.type == struc.BODY) {
             CompilerStructure s = struc;
+            bodyDepth++;
             do {
-                if (s.head.type == s.CUT) {
-                    String y = substituteVariable("");
-                    result.addStatementAtPosition(new Statement("", "get_level", y), 0);
-                    result.addStatement(new Statement("", "cut", y));
+                if ((s.head.type == s.CUT) && (localCut)) {
+                    if (cutBarrier == null) {
+                        cutBarrier = substituteVariable("");
+                    }
+                    result.addStatement(new Statement("", "cut", cutBarrier));
+                } else if (s.head.type == s.CUT) {
+                    // the other cuts of a clause, even inside branches, share the level taken at its start
+                    if (cutVariable == null) {
+                        cutVariable = substituteVariable("");
+                    }
+                    result.addStatement(new Statement("", "cut", cutVariable));
                 } else result.addProgram(structureToCode(s.head));
                 s = s.tail;
             } while (s != null);
+            if ((--bodyDepth == 0) && (cutVariable != null)) {
+                result.addStatementAtPosition(new Statement("", "get_level", cutVariable), 0);
+                cutVariable = null;
+            }
+
+        } else if (struc.type == struc.DISJUNCTION) {
+            if (struc.head.type == struc.IF_THEN) {
+                ifThenElse(struc.head, struc.tail, result);
+            } else {
+                // try the left alternative first, the choicepoint leads to the right one
+                Program left = branch(struc.head, result);
+                Program right = branch(struc.tail, result);
+                result.addStatement(new Statement("", "try_me_else", "+" + (left.getStatementCount() + 2), "0"));
+                result.addProgram(left);
+                result.addStatement(new Statement("", "jump", "+" + (right.getStatementCount() + 2)));
+                result.addStatement(new Statement("", "trust_me", "0"));
+                result.addProgram(right);
+            }
+
+        } else if (struc.type == struc.IF_THEN) {
+            ifThenElse(struc, null, result);
 
         } else if (struc.type == struc.QUERY) {
             if (struc.head == null) {
@@ -711,10 +1070,8 @@ public abstract class Compiler {
             result.addStatement(new Statement("", "halt", ""));
 
         } else if (struc.type == struc.COMPARISON) {
-            result.addProgram(structureToCode(struc.head));
-            String headVar = lastVar;
-            result.addProgram(structureToCode(struc.tail));
-            String tailVar = lastVar;
+            String headVar = postfix(struc.head, result);
+            String tailVar = postfix(struc.tail, result);
             if (struc.value.compareTo(">") == 0) {
                 result.addStatement(new Statement("", "bigger", headVar, tailVar));
             } else if (struc.value.compareTo("<") == 0) {
@@ -728,12 +1085,9 @@ public abstract class Compiler {
             }
 
         } else if (struc.type == struc.ASSIGNMENT) {
-            result.addProgram(structureToCode(struc.tail.head));
-            String headVar = lastVar;
-            result.addProgram(structureToCode(struc.tail.tail));
-            String tailVar = lastVar;
+            String expression = postfix(struc.tail, result);
             result.addProgram(structureToCode(struc.head));
-            result.addStatement(new Statement("", "is", lastVar, struc.tail.value, headVar + " " + tailVar));
+            result.addStatement(new Statement("", "is", lastVar, expression));
         }
 
         return result;
@@ -27,16 +27,20 @@ public class CompilerStructure {
     public final int BODY = +9;   // this is a PROCEDURE's body, i.e. a list of CONDITIONs
     public final int CALL = 10;   // this is a condition, e.g. "father(X, Y)", composed of the PREDICATE name
     // and a LIST of calling arguments
-    public final int NOT_CALL = 11;   // negated call, invokes a new process and returns true upon failure
+    public final int NOT_CALL = 11;   // negated goal (in head), succeeds if the goal fails
     public final int UNIFICATION = 12;   // this is a unification of the form "X = Y" (args in head and tail).
-    public final int ASSIGNMENT = 13;   // this is an assignment of the form "X = 1 + 3",
-    // where X can be found in head, + in tail.value and 1 (3) in tail.head (tail.tail)
-    public final int EXPRESSION = 14;   // this is an arithmetic expression, to be used in ASSIGNMENTs,
-    // in "X = 1 + 3", "1 + 3" would be the expression, with + as value,
-    // 1 as (constant) head and 3 as (constant) tail
+    public final int ASSIGNMENT = 13;   // this is an assignment of the form "X is 1 + 3",
+    // where X can be found in head and the expression "1 + 3" in tail
+    public final int EXPRESSION = 14;   // this is an arithmetic operation, to be used in ASSIGNMENTs and COMPARISONs,
+    // in "X is 1 + 3", "1 + 3" would be the expression, with + as value,
+    // 1 as (constant) head and 3 as (constant) tail; functions keep their second
+    // argument in tail (null for unary ones), operands may be EXPRESSIONs again
     public final int COMPARISON = 15;   // something like "X < 5" or "Z > Y"
     public final int STRUCTURE = 16;   // this is a structure, e.g. "s(x, y, X)", "auto(mobil, nix_is)"
     public final int CUT = 17;   // a cut instruction ("!")
+    public final int DISJUNCTION = 18;   // "A ; B", with the alternatives in head and tail
+    public final int IF_THEN = 19;   // "C -> T" (or "C *-> T" for a soft cut, as value), with the condition in head
+    // and the then-part in tail, both BODYs; as head of a DISJUNCTION it is an if-then-else
 
     public int type;                     // the type of the node, as explained above
     public CompilerStructure head, tail; // sub-nodes in case of non-trivial nodes (lists, queries, ...)
@@ -56,6 +60,14 @@ public class CompilerStructure {
         value = aValue;
     } 
 
+    // create a new structure of type aType with value aValue and sub-nodes aHead and aTail
+    public CompilerStructure(int aType, String aValue, CompilerStructure aHead, CompilerStructure aTail) {
+        type = aType;
+        value = aValue;
+        head = aHead;
+        tail = aTail;
+    }
+
     // return the string that shall be used to display this node on the screen
     public String toString() {
         if (type == NO_TYPE)
@@ -97,12 +109,22 @@ public class CompilerStructure {
             else
                 return head.toString() + "(" + tail.toString() + ")";
         } else if (type == NOT_CALL) {
-            if (tail == null)
-                return "not " + head.toString();
-            else
-                return "not " + head.toString() + "(" + tail.toString() + ")";
+            return "not " + head.toString();
+        } else if (type == DISJUNCTION) {
+            return "(" + head.toString() + "\n;\n" + tail.toString() + ")";
+        } else if (type == IF_THEN) {
+            return "(" + head.toString() + "\n" + value + "\n" + tail.toString() + ")";
         } else if (type == COMPARISON) {
             return head.toString() + " " + value + " " + tail.toString();
+        } else if (type == ASSIGNMENT) {
+            return head.toString() + " is " + tail.toString();
+        } else if (type == EXPRESSION) {
+            if (head == null)
+                return value;
+            else if (tail == null)
+                return value + "(" + head.toString() + ")";
+            else
+                return "(" + head.toString() + " " + value + " " + tail.toString() + ")";
         } else if (type == LIST) {
             if (head == null)
                 return "[]";
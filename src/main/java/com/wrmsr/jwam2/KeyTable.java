@@ -0,0 +1,128 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * KeyTable.java contains the KeyTable class, the index of one argument
+ * position of a procedure, used by ClauseIndex and Procedure.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.math.BigInteger;
+
+// A KeyTable maps the key of an argument to the clauses that may match it, in clause order. A key is
+// a kind, the tag a bound argument would have (Wam.CON, INT, FLT, BIG, LIS or STR), and a long: the
+// atom of a constant, the value of an integer, the bits of a float, the hash of a big integer (equal
+// hashes only add candidates), 0 for a list and the functor's atom and arity of a structure. So a
+// call looks up its argument without building a String. Clauses whose argument may be anything
+// (kind Wam.REF) match every key. Lists only ever grow, see ClauseList.
+public class KeyTable {
+    private int[] kinds = new int[16];    // kind of the key in each slot whose list is not null
+    private long[] values = new long[16];
+    private ClauseList[] lists = new ClauseList[16];
+    private int count;                    // number of keys
+    private ClauseList others = new ClauseList();  // clauses matching any key
+
+    // structure returns the value of the key of a structure
+    public static long structure(int functor, int arity) {
+        return ((long) functor << 32) | arity;
+    }
+
+    // add appends a clause whose argument has the given key, as spelled by ClauseIndex.keyOf
+    public void add(String key, int clause) {
+        if ((key == null) || (key.length() == 0) || (key.compareTo(ClauseIndex.WILDCARD) == 0)) {
+            add(Wam.REF, 0, clause);
+            return;
+        }
+        if (key.compareTo(".") == 0) {
+            add(Wam.LIS, 0, clause);
+            return;
+        }
+        switch (Wam.numberKind(key)) {
+            case Wam.INT:
+                add(Wam.INT, Long.parseLong(key), clause);
+                return;
+            case Wam.BIG:
+                add(Wam.BIG, new BigInteger(key).hashCode(), clause);
+                return;
+            case Wam.FLT:
+                add(Wam.FLT, Double.doubleToLongBits(Double.parseDouble(key)), clause);
+                return;
+        }
+        add(Wam.CON, AtomTable.intern(key), clause);
+        // "f/n" is the key of a structure, but might be an atom as well: the clause is kept under both
+        int slash = key.lastIndexOf('/');
+        if ((slash > 0) && (isArity(key.substring(slash + 1)))) {
+            add(Wam.STR, structure(AtomTable.intern(key.substring(0, slash)), Integer.parseInt(key.substring(slash + 1))), clause);
+        }
+    }
+
+    private static boolean isArity(String s) {
+        if ((s.length() == 0) || (s.length() > 9)) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if ((s.charAt(i) < '0') || (s.charAt(i) > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // add appends a clause whose argument has the given key
+    public void add(int kind, long value, int clause) {
+        if (kind == Wam.REF) {
+            others.add(clause);
+            for (int i = 0; i < lists.length; i++) {
+                if (lists[i] != null) {
+                    lists[i].add(clause);
+                }
+            }
+            return;
+        }
+        int slot = find(kind, value);
+        if (lists[slot] == null) {
+            if ((count + 1) * 2 > lists.length) {
+                grow();
+                slot = find(kind, value);
+            }
+            kinds[slot] = kind;
+            values[slot] = value;
+            lists[slot] = others.copy();
+            count++;
+        }
+        lists[slot].add(clause);
+    }
+
+    // lookup returns the clauses that may match an argument with the given key
+    public ClauseList lookup(int kind, long value) {
+        ClauseList result = lists[find(kind, value)];
+        return (result == null) ? others : result;
+    }
+
+    // find returns the slot of the key, or the free slot it would go to
+    private int find(int kind, long value) {
+        long h = (value + kind) * 0x9e3779b97f4a7c15L;
+        int mask = lists.length - 1;
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while ((lists[slot] != null) && ((kinds[slot] != kind) || (values[slot] != value))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKinds = kinds;
+        long[] oldValues = values;
+        ClauseList[] oldLists = lists;
+        kinds = new int[oldLists.length * 2];
+        values = new long[oldLists.length * 2];
+        lists = new ClauseList[oldLists.length * 2];
+        for (int i = 0; i < oldLists.length; i++) {
+            if (oldLists[i] != null) {
+                int slot = find(oldKinds[i], oldValues[i]);
+                kinds[slot] = oldKinds[i];
+                values[slot] = oldValues[i];
+                lists[slot] = oldLists[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * ObjectFile.java contains the ObjectFile class, which writes a program to a
+ * binary object file and loads it back without parsing or linking it again.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Vector;
+
+// An object file holds a linked program: a table of all the strings it uses (labels, functions and
+// operands, each stored once), then the statements with their operator numbers, jump targets and
+// operands as indices into the string table, and at last the dynamic procedures with their alive
+// clauses. A loaded program runs as it is; appending it to another one relocates it like any code.
+// The format changes along with the operator numbers of Statement, so FORMAT has to be raised
+// whenever those do.
+public class ObjectFile {
+    public static final int MAGIC = 0x57414d4f;            // "WAMO"
+    public static final int FORMAT = 1;                    // version of the format
+    public static final long MAP_THRESHOLD = 8L << 20;     // files at least this large are mapped
+
+    // write writes the code of program to the given file, returning false if it could not be written
+    public static boolean write(Program program, String fileName) {
+        // collect the strings first, numbering them in order of appearance
+        HashMap numbers = new HashMap();
+        Vector strings = new Vector();
+        int cnt = program.getStatementCount();
+        for (int i = 0; i < cnt; i++) {
+            Statement s = program.getStatement(i);
+            number(s.getLabel(), numbers, strings);
+            number(s.getFunction(), numbers, strings);
+            Vector args = s.getArgs();
+            for (int j = 0; j < args.size(); j++) {
+                number((String) args.elementAt(j), numbers, strings);
+            }
+        }
+        for (int i = 0; i < program.getProcedureCount(); i++) {
+            Procedure procedure = program.getProcedure(i);
+            number(procedure.getName(), numbers, strings);
+            for (int c = 0; c < procedure.getClauseCount(); c++) {
+                number(key(procedure, c), numbers, strings);
+            }
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(strings.size());
+                for (int i = 0; i < strings.size(); i++) {
+                    byte[] bytes = ((String) strings.elementAt(i)).getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeInt(cnt);
+                for (int i = 0; i < cnt; i++) {
+                    Statement s = program.getStatement(i);
+                    Vector args = s.getArgs();
+                    out.writeInt(index(s.getLabel(), numbers));
+                    out.writeInt(index(s.getFunction(), numbers));
+                    out.writeInt(s.operator);
+                    out.writeInt(s.jump);
+                    out.writeInt(args.size());
+                    for (int j = 0; j < args.size(); j++) {
+                        out.writeInt(index((String) args.elementAt(j), numbers));
+                    }
+                }
+                out.writeInt(program.getProcedureCount());
+                for (int i = 0; i < program.getProcedureCount(); i++) {
+                    Procedure procedure = program.getProcedure(i);
+                    int alive = 0;
+                    for (int c = 0; c < procedure.getClauseCount(); c++) {
+                        if (procedure.isAlive(c)) {
+                            alive++;
+                        }
+                    }
+                    out.writeInt(index(procedure.getName(), numbers));
+                    out.writeInt(procedure.getEntry());
+                    out.writeInt(procedure.getArity());
+                    out.writeInt(alive);
+                    for (int c = 0; c < procedure.getClauseCount(); c++) {
+                        if (procedure.isAlive(c)) {
+                            out.writeInt(procedure.getLine(c));
+                            out.writeInt(index(key(procedure, c), numbers));
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException io) {
+            return false;
+        }
+        return true;
+    }
+
+    // isObjectFile returns true if the given file starts like an object file
+    public static boolean isObjectFile(String fileName) {
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(4);
+                while ((buffer.hasRemaining()) && (channel.read(buffer) > 0)) {
+                }
+                buffer.flip();
+                return (buffer.remaining() == 4) && (buffer.getInt() == MAGIC);
+            } finally {
+                channel.close();
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // read loads the program in the given file, mapping the file if it is large, and returns null if
+    // it cannot be read
+    public static Program read(String fileName, Wam owner) {
+        return read(fileName, owner, false);
+    }
+
+    // read loads the program in the given file; map makes it map the file whatever its size
+    public static Program read(String fileName, Wam owner, boolean map) {
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            ByteBuffer buffer;
+            try {
+                long size = channel.size();
+                if ((map) || (size >= MAP_THRESHOLD)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                } else {
+                    buffer = ByteBuffer.allocate((int) size);
+                    while ((buffer.hasRemaining()) && (channel.read(buffer) > 0)) {
+                    }
+                    buffer.flip();
+                }
+            } finally {
+                channel.close();
+            }
+            return decode(buffer, owner);
+        } catch (IOException io) {
+            return null;
+        } catch (RuntimeException e) {
+            // a truncated or damaged file, e.g. a BufferUnderflowException or an index out of range
+            return null;
+        }
+    }
+
+    private static Program decode(ByteBuffer buffer, Wam owner) throws IOException {
+        if ((buffer.remaining() < 8) || (buffer.getInt() != MAGIC) || (buffer.getInt() != FORMAT)) {
+            return null;
+        }
+        String[] strings = new String[buffer.getInt()];
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            strings[i] = new String(bytes, 0, length, "UTF-8");
+        }
+        Program result = new Program(owner);
+        int cnt = buffer.getInt();
+        for (int i = 0; i < cnt; i++) {
+            String label = strings[buffer.getInt()];
+            String function = strings[buffer.getInt()];
+            int operator = buffer.getInt();
+            int jump = buffer.getInt();
+            String[] operands = new String[buffer.getInt()];
+            for (int j = 0; j < operands.length; j++) {
+                operands[j] = strings[buffer.getInt()];
+            }
+            Statement s = new Statement(label, function, operator, operands);
+            s.setJump(jump);
+            result.addResolved(s);
+        }
+        int procedures = buffer.getInt();
+        for (int i = 0; i < procedures; i++) {
+            String name = strings[buffer.getInt()];
+            int entry = buffer.getInt();
+            int arity = buffer.getInt();
+            int clauses = buffer.getInt();
+            Procedure procedure = result.addProcedure(name, entry);
+            for (int c = 0; c < clauses; c++) {
+                int line = buffer.getInt();
+                procedure.add(line, strings[buffer.getInt()], arity, 0);
+            }
+        }
+        return result;
+    }
+
+    private static String key(Procedure procedure, int clause) {
+        String key = procedure.getKey(clause);
+        return (key == null) ? "" : key;
+    }
+
+    private static void number(String s, HashMap numbers, Vector strings) {
+        if (!numbers.containsKey(s)) {
+            numbers.put(s, new Integer(strings.size()));
+            strings.addElement(s);
+        }
+    }
+
+    private static int index(String s, HashMap numbers) {
+        return ((Integer) numbers.get(s)).intValue();
+    }
+}
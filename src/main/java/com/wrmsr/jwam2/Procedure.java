@@ -0,0 +1,210 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * Procedure.java contains the Procedure class, the clause store of a dynamic
+ * procedure, i.e. one that has been changed by assert or retract.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.util.Vector;
+
+// A Procedure keeps the clauses of a dynamic procedure in the order they were added. Its entry line
+// holds a dispatch statement, which enters the clauses right behind their header statements instead
+// of following a try_me_else chain, so assert only appends a clause and retract only marks one dead.
+// Every clause carries the generation it was added in and the one it was retracted in: a call sees
+// the clauses alive in the generation current when it started (the logical update view), no matter
+// what its clauses assert or retract meanwhile. Retracted clauses keep their code until
+// Program.compact() removes it between two queries. Like a ClauseIndex, a procedure indexes its
+// first argument and, once it has JIT_THRESHOLD clauses, the other arguments calls bind; the tables
+// keep retracted clauses, which the generations filter out.
+public class Procedure {
+    public static final int ALIVE = Integer.MAX_VALUE;  // retraction generation of clauses still alive
+
+    private final Program program;  // the program holding the clauses' code
+    private final String name;
+    private final int number;    // number of the procedure, the operand of its dispatch statement
+    private int entry;           // line of the dispatch statement
+    private int arity = -1;      // greatest arity of the clauses, -1 if unknown
+    private int count;           // number of clauses, retracted ones included
+    private int[] lines = new int[4];   // line of each clause's header statement
+    private int[] born = new int[4];    // generation each clause was added in
+    private int[] died = new int[4];    // generation each clause was retracted in, ALIVE if it was not
+    private int[] previous = new int[4];  // alive clauses are linked in clause order, -1 ending the chain
+    private int[] next = new int[4];
+    private int last = -1;       // last alive clause
+    private String[] keys = new String[4];  // first argument key of each clause, see ClauseIndex
+    private int labelCount;      // number of "name~i" labels handed out
+    private ClauseList all = new ClauseList();
+    private Vector tables = new Vector();  // KeyTable per argument, holding clause numbers, null entries until a call needs them
+
+    public Procedure(Program aProgram, String aName, int aNumber, int anEntry) {
+        program = aProgram;
+        name = aName;
+        number = aNumber;
+        entry = anEntry;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int getEntry() {
+        return entry;
+    }
+
+    public int getArity() {
+        return arity;
+    }
+
+    // returns the number of clauses, retracted ones included
+    public int getClauseCount() {
+        return count;
+    }
+
+    public int getLine(int clause) {
+        return lines[clause];
+    }
+
+    // returns the first argument key of a clause, see ClauseIndex
+    public String getKey(int clause) {
+        return keys[clause];
+    }
+
+    public boolean isAlive(int clause) {
+        return died[clause] == ALIVE;
+    }
+
+    // isVisible returns true if the clause was alive in the given generation
+    public boolean isVisible(int clause, int generation) {
+        return (born[clause] <= generation) && (generation < died[clause]);
+    }
+
+    // returns the last clause that has not been retracted, -1 if there is none
+    public int getLastClause() {
+        return last;
+    }
+
+    // nextLabel returns a label for the header of a new clause, "name~i" like the clauses of a chain;
+    // the caller skips those that are taken already
+    public String nextLabel() {
+        return name + "~" + (++labelCount);
+    }
+
+    // add appends the clause whose header statement is at line and returns its number
+    public int add(int line, String key, int clauseArity, int generation) {
+        if (count == lines.length) {
+            lines = grow(lines);
+            born = grow(born);
+            died = grow(died);
+            previous = grow(previous);
+            next = grow(next);
+            String[] newKeys = new String[count * 2];
+            System.arraycopy(keys, 0, newKeys, 0, count);
+            keys = newKeys;
+        }
+        int clause = count++;
+        lines[clause] = line;
+        born[clause] = generation;
+        died[clause] = ALIVE;
+        keys[clause] = key;
+        previous[clause] = last;
+        next[clause] = -1;
+        if (last >= 0) {
+            next[last] = clause;
+        }
+        last = clause;
+        arity = Math.max(arity, clauseArity);
+        all.add(clause);
+        for (int i = 0; i < tables.size(); i++) {
+            KeyTable table = (KeyTable) tables.elementAt(i);
+            if (table != null) {
+                table.add(keyOf(clause, i), clause);
+            }
+        }
+        return clause;
+    }
+
+    // retract marks an alive clause as retracted in the given generation, returning false if it was not alive
+    public boolean retract(int clause, int generation) {
+        if (died[clause] != ALIVE) {
+            return false;
+        }
+        died[clause] = generation;
+        if (previous[clause] >= 0) {
+            next[previous[clause]] = next[clause];
+        }
+        if (next[clause] >= 0) {
+            previous[next[clause]] = previous[clause];
+        } else {
+            last = previous[clause];
+        }
+        return true;
+    }
+
+    // lookup returns the clauses that may match an argument with the given key (see KeyTable) in the
+    // given argument position, all of them for kind Wam.REF. Like switch_on_term for consulted
+    // procedures, this leaves no choicepoint behind the last clause matching a bound first argument
+    public ClauseList lookup(int argument, int kind, long value) {
+        if ((kind == Wam.REF) || (count < ((argument == 0) ? 2 : ClauseIndex.JIT_THRESHOLD))) {
+            return all;
+        }
+        while (tables.size() <= argument) {
+            tables.addElement(null);
+        }
+        KeyTable table = (KeyTable) tables.elementAt(argument);
+        if (table == null) {
+            table = new KeyTable();
+            for (int i = 0; i < count; i++) {
+                table.add(keyOf(i, argument), i);
+            }
+            tables.setElementAt(table, argument);
+        }
+        return table.lookup(kind, value);
+    }
+
+    // keyOf returns the key of a clause for the given argument position
+    private String keyOf(int clause, int argument) {
+        return (argument == 0) ? keys[clause] : ClauseIndex.keyOf(program, lines[clause], argument);
+    }
+
+    // compact drops the retracted clauses and moves the others to their new lines (newLines maps old
+    // lines to new ones). Clause numbers change, so no call may be running on the procedure
+    public void compact(int[] newLines) {
+        entry = newLines[entry];
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (died[i] == ALIVE) {
+                lines[kept] = newLines[lines[i]];
+                born[kept] = 0;
+                died[kept] = ALIVE;
+                keys[kept] = keys[i];
+                previous[kept] = kept - 1;
+                next[kept] = kept + 1;
+                kept++;
+            }
+        }
+        for (int i = kept; i < count; i++) {
+            keys[i] = null;
+        }
+        count = kept;
+        if (count > 0) {
+            next[count - 1] = -1;
+        }
+        last = count - 1;
+        all = new ClauseList();
+        for (int i = 0; i < count; i++) {
+            all.add(i);
+        }
+        tables = new Vector();
+    }
+
+    private static int[] grow(int[] array) {
+        int[] result = new int[array.length * 2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
@@ -8,7 +8,9 @@
  ******************************************************************************/
 package com.wrmsr.jwam2;
 
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Vector;
 
 // Program class manages WAM programs, consisting of list (vector) of statements
@@ -27,21 +29,133 @@ public class Program {
     public static final int callIsBound = -21;
     public static final int callReadLn = -22;
     public static final int callCall = -23;
+    public static final int callLength = -24;
+    public static final int callNth = -25;
+    public static final int callLast = -26;
+
+    // the decoded code array holds CODE_WIDTH words per statement: the operator followed by up to
+    // four operand words, so that the statement at line i starts at code[i * CODE_WIDTH]
+    public static final int CODE_WIDTH = 5;
+
+    // operand words carry their kind in the lowest KIND_BITS bits and the register index,
+    // constant pool index or immediate integer value in the remaining ones
+    public static final int KIND_BITS = 3;
+    public static final int KIND_MASK = 7;
+    public static final int KIND_A = 0;      // argument register Ai
+    public static final int KIND_Y = 1;      // permanent variable Yi
+    public static final int KIND_Q = 2;      // query variable Qi
+    public static final int KIND_CONST = 3;  // constant, index into the constant pool
+    public static final int KIND_INT = 4;    // immediate integer literal (operands of "is")
+    public static final int KIND_EXPR = 5;   // arithmetic expression, index into the expression table
+    public static final int KIND_OP = 6;     // function of an arithmetic expression (see Arithmetic)
+    public static final int KIND_NONE = 7;   // operand is missing or invalid
+
+    // the built-in predicates by name, calls to them "jump" to these negative lines
+    private static final HashMap BUILTINS = new HashMap();
+
+    static {
+        builtin("atomic", callIsAtom);
+        builtin("integer", callIsInteger);
+        builtin("bound", callIsBound);
+        builtin("write", callWrite);
+        builtin("writeln", callWriteLn);
+        builtin("call", callCall);
+        builtin("nl", callNewLine);
+        builtin("newline", callNewLine);
+        builtin("consult", callConsult);
+        builtin("reconsult", callReconsult);
+        builtin("load", callLoad);
+        builtin("assert", callAssert);
+        builtin("assertz", callAssert);
+        builtin("retract", callRetractOne);
+        builtin("retractone", callRetractOne);
+        builtin("retractall", callRetractAll);
+        builtin("readln", callReadLn);
+        builtin("length", callLength);
+        builtin("nth", callNth);
+        builtin("last", callLast);
+    }
+
+    private static void builtin(String name, int call) {
+        BUILTINS.put(name, new Integer(call));
+    }
 
     private final Vector statements;
-    public TreeMap labels;
+    public HashMap labels;       // the symbol table: label -> its line (Integer)
     public Wam owner;
+    private HashMap callSites;   // label -> Sites, the lines of the statements referring to it (see append())
+    private Vector deadRanges;   // {first, end} of blocks of code deleted from the middle of the program
+    private int staleLines;      // lines deleted since the last full decode, whose table entries are still kept
+
+    // Sites holds the lines of the statements referring to one label, in no particular order
+    private static class Sites {
+        int[] lines = new int[2];
+        int size;
+
+        void add(int line) {
+            if (size == lines.length) {
+                int[] newLines = new int[size * 2];
+                System.arraycopy(lines, 0, newLines, 0, size);
+                lines = newLines;
+            }
+            lines[size++] = line;
+        }
+
+        // remove drops line, searching from the end since the latest sites are the ones removed most often
+        void remove(int line) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (lines[i] == line) {
+                    lines[i] = lines[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private int[] code;          // the decoded statements, see decode()
+    private String[] constants;  // constant pool referenced by KIND_CONST operands
+    private ClauseIndex[] indexes;  // indexes referenced by try_me_else, switch_on_constant and switch_on_structure
+    private int[][] expressions;    // expression table referenced by KIND_EXPR operands, see expression()
+    private int[][] argumentLists;  // operand words of the arguments of put_structure and put_segment statements
+    private HashMap clauseIndexes;  // first clause line -> ClauseIndex, kept as long as the clauses do not move
+    private boolean decoded;     // false whenever the statements have changed since the last decode()
+    private int decodedCount;    // number of statements decoded so far, -1 if all of them have to be decoded again
+
+    // decode() keeps its tables, so that the statements appended by assert are decoded on their own
+    private Vector pool;            // the constant pool
+    private HashMap poolIndex;      // constant -> its index in pool
+    private Vector indexList;       // ClauseIndex by number
+    private HashMap indexNumbers;   // ClauseIndex -> its number in indexList
+    private Vector expressionList;  // expressions by number
+    private Vector argumentList;    // argument lists by number
+
+    private Vector procedures;   // the dynamic procedures (see Procedure), by number
+    private HashMap dynamics;    // procedure name -> its Procedure, once it has been changed by assert or retract
+    private int generation;      // counts the asserts and retracts, see Procedure
+    private int deadLines;       // lines of retracted clauses that compact() has not removed yet
 
     public Program() {
         statements = new Vector();
         owner = null;
-        labels = new TreeMap();
+        labels = new HashMap();
+        callSites = new HashMap();
+        deadRanges = new Vector();
+        clauseIndexes = new HashMap();
+        procedures = new Vector();
+        dynamics = new HashMap();
+        decodedCount = -1;
     }
 
     public Program(Wam anOwner) {
         statements = new Vector();
         owner = anOwner;
-        labels = new TreeMap();
+        labels = new HashMap();
+        callSites = new HashMap();
+        deadRanges = new Vector();
+        clauseIndexes = new HashMap();
+        procedures = new Vector();
+        dynamics = new HashMap();
+        decodedCount = -1;
     }
 
     public void addProgram(Program p) {
@@ -66,10 +180,19 @@ public class Program {
 
     public void addStatement(Statement s) {
         statements.addElement(s);
+        decoded = false;
     }
 
     public void addStatementAtPosition(Statement s, int position) {
         statements.insertElementAt(s, position);
+        clauseIndexes.clear();
+        invalidate();
+    }
+
+    // invalidate makes the next decode() start from scratch, after statements have been changed or removed
+    private void invalidate() {
+        decoded = false;
+        decodedCount = -1;
     }
 
     public int getStatementCount() {
@@ -80,99 +203,242 @@ public class Program {
         return (Statement) statements.elementAt(i);
     }
 
+    // deleteFromLine deletes the block of statements starting at lineNumber and ending in front of the
+    // next label, returning the number of its lines. The last block of the program is removed right
+    // away; code behind others (e.g. clauses asserted by the query being deleted) must not move, so
+    // such a block only loses its label and compact() removes it later on
     public int deleteFromLine(int lineNumber) {
-        int result = 1;
-        if (lineNumber >= 0) {
-            statements.removeElementAt(lineNumber);
-            while ((statements.size() > lineNumber) && (((Statement) statements.elementAt(lineNumber)).getLabel().length() == 0)) {
-                result++;
-                statements.removeElementAt(lineNumber);
+        if (lineNumber < 0) {
+            return 0;
+        }
+        int end = clauseEnd(lineNumber);
+        if (end == statements.size()) {
+            truncate(lineNumber);
+        } else {
+            String label = getStatement(lineNumber).getLabel();
+            labels.remove(label);
+            relink(label, statements.size());
+            deadRanges.addElement(new int[]{lineNumber, end});
+            deadLines += end - lineNumber;
+        }
+        return end - lineNumber;
+    }
+
+    // truncate removes the statements from line on, taking their labels and call sites out of the symbol table
+    private void truncate(int line) {
+        for (int i = statements.size() - 1; i >= line; i--) {
+            Statement s = getStatement(i);
+            if (references(s)) {
+                Sites sites = (Sites) callSites.get(s.arg1);
+                if (sites != null) {
+                    sites.remove(i);
+                }
+                if (s.operator == Statement.opTryMeElse) {
+                    clauseIndexes.remove(new Integer(i));
+                }
+            }
+            String label = s.getLabel();
+            Integer definition = (Integer) labels.get(label);
+            if ((definition != null) && (definition.intValue() == i)) {
+                labels.remove(label);
+                relink(label, line);
             }
-            updateLabels();
         }
-        return result;
+        staleLines += statements.size() - line;
+        statements.setSize(line);
+        if (decodedCount > line) {
+            decodedCount = line;
+        }
+        // the decode tables keep the entries of deleted statements; start afresh once there are as many of them as live ones
+        if (staleLines > statements.size()) {
+            invalidate();
+        }
     }
 
     public int deleteFrom(String label) {
         return deleteFromLine(getLabelIndex(label));
     }
 
-    public int getLastClauseOf(String procedureName) {
-        int line = getLabelIndex(procedureName);
-        if (line >= 0) {
-            boolean finished = false;
-            Statement s;
-            do {
-                s = getStatement(line);
-                if ((s.operator == Statement.opTryMeElse) || (s.operator == Statement.opRetryMeElse)) line = s.jump;
-                else finished = true;
-            } while (!finished);
+    // dynamicProcedure returns the clause store of the procedure with the given name, turning a
+    // procedure consulted as a try_me_else chain into a dynamic one first. Returns null if there is no such procedure
+    public Procedure dynamicProcedure(String name) {
+        Procedure procedure = (Procedure) dynamics.get(name);
+        if (procedure != null) {
+            return procedure;
+        }
+        Integer entry = (Integer) labels.get(name);
+        if (entry == null) {
+            return null;
+        }
+        // collect the clauses first, since the dispatch statement replaces the first header (or the switch_on_term)
+        Vector clauses = new Vector();
+        int line = entry.intValue();
+        if (getStatement(line).operator == Statement.opSwitchOnTerm) {
+            line = getStatement(line).jump;
+        }
+        while ((line >= 0) && (line < statements.size())) {
+            Statement s = getStatement(line);
+            boolean chained = (s.operator == Statement.opTryMeElse) || (s.operator == Statement.opRetryMeElse);
+            if ((!chained) && (s.operator != Statement.opTrustMe) && (s.operator != Statement.opNoOp)) {
+                break;
+            }
+            clauses.addElement(s);
+            clauses.addElement(new Integer(line));
+            if (!chained) {
+                break;
+            }
+            line = s.jump;
         }
-        return line;
+        procedure = makeDynamic(name, entry.intValue());
+        for (int i = 0; i < clauses.size(); i += 2) {
+            Statement s = (Statement) clauses.elementAt(i);
+            boolean chained = (s.operator == Statement.opTryMeElse) || (s.operator == Statement.opRetryMeElse);
+            procedure.add(((Integer) clauses.elementAt(i + 1)).intValue(), chained ? s.arg3 : s.arg2,
+                    arity(chained ? s.arg2 : s.arg1), 0);
+        }
+        return procedure;
+    }
+
+    // makeDynamic creates the Procedure of the given name, whose calls arrive at line entry
+    private Procedure makeDynamic(String name, int entry) {
+        Procedure procedure = addProcedure(name, entry);
+        statements.setElementAt(new Statement(name, "dispatch", name), entry);
+        decodeAgain(entry);
+        return procedure;
+    }
+
+    // addProcedure enters the dynamic procedure of the given name, whose dispatch statement is at line
+    // entry already (e.g. when code is read back), and returns it for its clauses to be added
+    public Procedure addProcedure(String name, int entry) {
+        Procedure procedure = new Procedure(this, name, procedures.size(), entry);
+        procedures.addElement(procedure);
+        dynamics.put(name, procedure);
+        return procedure;
+    }
+
+    // returns the dynamic procedure with the given number, as referenced by dispatch statements
+    public Procedure getProcedure(int number) {
+        return (Procedure) procedures.elementAt(number);
+    }
+
+    public int getProcedureCount() {
+        return procedures.size();
     }
 
-    public int getLastClauseButOneOf(String procedureName) {
-        int result = -1;
-        int line = getLabelIndex(procedureName);
-        if (line >= 0) {
-            boolean finished = false;
-            Statement s;
+    // returns the current generation of the dynamic procedures, see Procedure
+    public int getGeneration() {
+        return generation;
+    }
+
+    // assertClause appends a clause compiled by PrologCompiler.compileSimpleClause to the procedure with the
+    // given name and returns that procedure, the new clause being its last one
+    public Procedure assertClause(String name, Program clause) {
+        Procedure procedure = dynamicProcedure(name);
+        Statement header = clause.getStatement(0);
+        String key = header.arg2;
+        int clauseArity = arity(header.arg1);
+        int line = statements.size();
+        generation++;
+        if (procedure == null) {
+            // a new procedure: the header of its first clause becomes the dispatch statement
+            header.setLabel(name);
+            append(clause);
+            procedure = makeDynamic(name, line);
+            procedure.add(line, key, clauseArity, generation);
+        } else {
+            String label;
             do {
-                s = getStatement(line);
-                if ((s.operator == Statement.opTryMeElse) || (s.operator == Statement.opRetryMeElse)) {
-                    result = line;
-                    line = s.jump;
-                } else {
-                    finished = true;
-                }
-            } while (!finished);
+                label = procedure.nextLabel();
+            } while (labels.containsKey(label));
+            header.setLabel(label);
+            append(clause);
+            procedure.add(line, key, clauseArity, generation);
         }
-        return result;
+        return procedure;
     }
 
-    public void addClause(String label, Program code) {
-        int line = getLastClauseOf(label);
-        if (line >= 0) {  // there already exists such a label: add via try_me_else
-            Statement s = getStatement(line);
-            int index = s.getLabel().indexOf('~');
-            try {
-                int i;
-                if (index > 0) {
-                    i = Integer.parseInt(s.getLabel().substring(index + 1)) + 1;
-                } else {
-                    i = 2;
+    // retract retracts a clause of a dynamic procedure, returning false if it was no longer alive
+    public boolean retract(Procedure procedure, int clause) {
+        if (!procedure.retract(clause, generation + 1)) {
+            return false;
+        }
+        generation++;
+        int line = procedure.getLine(clause);
+        deadLines += clauseEnd(line) - ((line == procedure.getEntry()) ? line + 1 : line);
+        return true;
+    }
+
+    // clauseEnd returns the line behind the code of the clause whose header is at line, i.e. the next labeled one
+    private int clauseEnd(int line) {
+        int end = line + 1;
+        while ((end < statements.size()) && (getStatement(end).getLabel().length() == 0)) {
+            end++;
+        }
+        return end;
+    }
+
+    // compact removes the code of retracted clauses once it makes up more than half of the program. The
+    // lines and clause numbers of the dynamic procedures change, so no query may be running
+    public void compact() {
+        if (deadLines * 2 > statements.size()) {
+            removeDeadCode();
+        }
+    }
+
+    // removeDeadCode removes the code of retracted clauses and deleted blocks right away, as compact()
+    // does once there is enough of it
+    public void removeDeadCode() {
+        int cnt = statements.size();
+        boolean[] dead = new boolean[cnt];
+        for (int i = 0; i < deadRanges.size(); i++) {
+            int[] range = (int[]) deadRanges.elementAt(i);
+            for (int j = range[0]; j < range[1]; j++) {
+                dead[j] = true;
+            }
+        }
+        deadRanges.removeAllElements();
+        for (int i = 0; i < procedures.size(); i++) {
+            Procedure procedure = (Procedure) procedures.elementAt(i);
+            for (int c = 0; c < procedure.getClauseCount(); c++) {
+                if (!procedure.isAlive(c)) {
+                    int line = procedure.getLine(c);
+                    int end = clauseEnd(line);
+                    for (int j = (line == procedure.getEntry()) ? line + 1 : line; j < end; j++) {
+                        dead[j] = true;
+                    }
                 }
-                // update the just-compiled program
-                String newLabel = label + "~" + i;
-                code.getStatement(0).setLabel(newLabel);
-                // update the previous clause: trust_me -> try_me_else
-                s.setFunction("try_me_else");
-                s.getArgs().setElementAt(newLabel, 0);
-                s.arg1 = newLabel;
-                s.setJump(statements.size());
-                // update labels and program itself
-                addProgram(code);
-            } catch (Exception e) {
             }
-        } else {  // first label of that kind: just add to code and update jumpings
-            addProgram(code);
-            updateLabels();
         }
+        int[] newLines = new int[cnt];
+        Vector kept = new Vector(cnt);
+        for (int i = 0; i < cnt; i++) {
+            newLines[i] = dead[i] ? -1 : kept.size();
+            if (!dead[i]) {
+                kept.addElement(statements.elementAt(i));
+            }
+        }
+        statements.removeAllElements();
+        statements.addAll(kept);
+        for (int i = 0; i < procedures.size(); i++) {
+            ((Procedure) procedures.elementAt(i)).compact(newLines);
+        }
+        deadLines = 0;
+        clauseIndexes.clear();
+        updateLabels();
     }
 
     public int getLabelIndex(String label) {
-        for (int i = 0; i < statements.size(); i++) {
-            if (label.compareTo(((Statement) statements.elementAt(i)).getLabel()) == 0) {
-                return i;
-            }
-        }
-        return -1;
+        Integer line = (Integer) labels.get(label);
+        return (line == null) ? -1 : line.intValue();
     }
 
     // updateLabels converts String label names in call, try_me_else and retry_me_else statements
-    // to integer values. internal predicates (e.g. write, consult) are transformed to negative line numbers
+    // to integer values. internal predicates (e.g. write, consult) are transformed to negative line numbers.
+    // It relinks the whole program; append() links new code incrementally
     public void updateLabels() {
-        labels = new TreeMap();
+        invalidate();
+        labels = new HashMap();
+        callSites = new HashMap();
         String label;
         int cnt = statements.size();
         for (int i = 0; i < cnt; i++) {
@@ -182,51 +448,552 @@ public class Program {
                 labels.put(label, new Integer(i));
             }
         }
+        link(0);
+    }
 
-        for (int i = 0; i < cnt; i++) {
+    // append adds code to the end of the program and links it: its labels are entered into the symbol
+    // table, its references resolved, and the statements referring to its labels from before updated
+    public void append(Program code) {
+        int from = statements.size();
+        addProgram(code);
+        for (int i = from; i < statements.size(); i++) {
+            String label = getStatement(i).getLabel();
+            if (label.length() > 0) {
+                relink(label, from);
+            }
+        }
+        link(from);
+        if (code != null) {
+            for (int i = 0; i < code.procedures.size(); i++) {
+                adopt(code.getProcedure(i), code, from);
+            }
+        }
+    }
+
+    // adopt enters a dynamic procedure of code, just appended from line from on, along with its alive
+    // clauses. Code that addProgram has not taken (because its labels are defined already) stays out
+    private void adopt(Procedure procedure, Program code, int from) {
+        int entry = procedure.getEntry();
+        if ((dynamics.containsKey(procedure.getName())) || (!isAppended(code, entry, from))) {
+            return;
+        }
+        Procedure adopted = addProcedure(procedure.getName(), entry + from);
+        for (int c = 0; c < procedure.getClauseCount(); c++) {
+            int line = procedure.getLine(c);
+            if ((procedure.isAlive(c)) && (isAppended(code, line, from))) {
+                adopted.add(line + from, procedure.getKey(c), procedure.getArity(), 0);
+            }
+        }
+    }
+
+    // returns true if line of code has been appended as line + from
+    private boolean isAppended(Program code, int line, int from) {
+        return (line + from < statements.size()) && (getStatement(line + from) == code.getStatement(line));
+    }
+
+    // addResolved adds a statement whose reference, if it has one, is resolved already (e.g. when code
+    // is read back from an object file), entering its label and call site without looking anything up
+    public void addResolved(Statement s) {
+        int line = statements.size();
+        addStatement(s);
+        if (s.getLabel().length() > 0) {
+            labels.put(s.getLabel(), new Integer(line));
+        }
+        if (references(s)) {
+            addSite(s.arg1, line);
+        }
+    }
+
+    // references returns true if s refers to a label by its first operand
+    private static boolean references(Statement s) {
+        switch (s.operator) {
+            case Statement.opCall:
+            case Statement.opExecute:
+            case Statement.opSwitchOnTerm:
+            case Statement.opSwitchOnConstant:
+            case Statement.opSwitchOnStructure:
+                return true;
+            case Statement.opTryMeElse:
+            case Statement.opRetryMeElse:
+                return !s.arg1.startsWith("+");
+            default:
+                return false;
+        }
+    }
+
+    // resolve sets the jump target of s, which refers to a label: its line if the label is defined, the
+    // (negative) number of the built-in predicate of that name, or -1
+    private void resolve(Statement s) {
+        Integer line = (Integer) labels.get(s.arg1);
+        if (line == null) {
+            line = (Integer) BUILTINS.get(s.arg1);
+        }
+        s.setJump((line != null) ? line.intValue() : -1);
+    }
+
+    // link resolves the references of the statements from line from on and records them as call sites
+    private void link(int from) {
+        int cnt = statements.size();
+        for (int i = from; i < cnt; i++) {
             Statement s = (Statement) statements.elementAt(i);
-            if ((s.getFunction().compareTo("call") == 0) ||
-                    (s.getFunction().compareTo("not_call") == 0) ||
-                    (s.getFunction().compareTo("try_me_else") == 0) ||
-                    (s.getFunction().compareTo("retry_me_else") == 0)
-            ) {
-                label = (String) (s.getArgs().elementAt(0));
-                s.setJump(-1);
-                if (labels.containsKey(label)) { // label is a user-defined predicate
-                    s.setJump(((Integer) labels.get(label)).intValue());
-                } else {  // label is undefined or a built-in predicate
-                    if (label.compareTo("atomic") == 0) {
-                        s.setJump(callIsAtom);
-                    } else if (label.compareTo("integer") == 0) {
-                        s.setJump(callIsInteger);
-                    } else if (label.compareTo("bound") == 0) {
-                        s.setJump(callIsBound);
-                    } else if (label.compareTo("write") == 0) {
-                        s.setJump(callWrite);
-                    } else if (label.compareTo("writeln") == 0) {
-                        s.setJump(callWriteLn);
-                    } else if (label.compareTo("call") == 0) {
-                        s.setJump(callCall);
-                    } else if ((label.compareTo("nl") == 0) || (label.compareTo("newline") == 0)) {
-                        s.setJump(callNewLine);
-                    } else if (label.compareTo("consult") == 0) {
-                        s.setJump(callConsult);
-                    } else if (label.compareTo("reconsult") == 0) {
-                        s.setJump(callReconsult);
-                    } else if (label.compareTo("load") == 0) {
-                        s.setJump(callLoad);
-                    } else if ((label.compareTo("assert") == 0) || (label.compareTo("assertz") == 0)) {
-                        s.setJump(callAssert);
-                    } else if ((label.compareTo("retract") == 0) || (label.compareTo("retractone") == 0)) {
-                        s.setJump(callRetractOne);
-                    } else if (label.compareTo("retractall") == 0) {
-                        s.setJump(callRetractAll);
-                    } else if (label.compareTo("readln") == 0) {
-                        s.setJump(callReadLn);
+            if (references(s)) {
+                resolve(s);
+                addSite(s.arg1, i);
+            }
+        }
+    }
+
+    // addSite records that the statement at line refers to label
+    private void addSite(String label, int line) {
+        Sites sites = (Sites) callSites.get(label);
+        if (sites == null) {
+            sites = new Sites();
+            callSites.put(label, sites);
+        }
+        sites.add(line);
+    }
+
+    // relink resolves the references to label in front of line end again, after the label has been
+    // defined or removed, and decodes them once more
+    private void relink(String label, int end) {
+        Sites sites = (Sites) callSites.get(label);
+        if (sites == null) {
+            return;
+        }
+        for (int i = 0; i < sites.size; i++) {
+            int line = sites.lines[i];
+            if (line < end) {
+                resolve(getStatement(line));
+                decodeAgain(line);
+            }
+        }
+    }
+
+    // returns the decoded code array, decoding the statements first if they have changed
+    public int[] getCode() {
+        if (!decoded) {
+            decode();
+        }
+        return code;
+    }
+
+    // returns the constant pool belonging to getCode()
+    public String[] getConstants() {
+        if (!decoded) {
+            decode();
+        }
+        return constants;
+    }
+
+    // returns the arithmetic expression with the given number, as referenced by getCode()
+    public int[] getExpression(int index) {
+        if (!decoded) {
+            decode();
+        }
+        return expressions[index];
+    }
+
+    // returns the argument operands of a put_structure or put_segment statement, as referenced by getCode()
+    public int[] getArguments(int index) {
+        if (!decoded) {
+            decode();
+        }
+        return argumentLists[index];
+    }
+
+    // returns the first argument index with the given number, as referenced by getCode()
+    public ClauseIndex getIndex(int index) {
+        if (!decoded) {
+            decode();
+        }
+        return indexes[index];
+    }
+
+    // decode translates the (already linked) statements into the dense code array, resolving
+    // register names, constants and jump targets once so the WAM never parses a String while running
+    private void decode() {
+        int from = decodedCount;
+        if (from < 0) {
+            from = 0;
+            code = new int[0];
+            constants = new String[0];
+            indexes = new ClauseIndex[0];
+            expressions = new int[0][];
+            argumentLists = new int[0][];
+            pool = new Vector();
+            poolIndex = new HashMap();
+            indexList = new Vector();
+            indexNumbers = new HashMap();
+            expressionList = new Vector();
+            argumentList = new Vector();
+            staleLines = 0;
+        }
+        int cnt = statements.size();
+        if (code.length < cnt * CODE_WIDTH) {
+            code = Arrays.copyOf(code, Math.max(cnt, 2 * code.length / CODE_WIDTH) * CODE_WIDTH);
+        }
+        int constantsFrom = pool.size();
+        int indexesFrom = indexList.size();
+        int expressionsFrom = expressionList.size();
+        int argumentsFrom = argumentList.size();
+        for (int i = from; i < cnt; i++) {
+            decodeStatement(i);
+        }
+        extendTables(constantsFrom, indexesFrom, expressionsFrom, argumentsFrom);
+        decodedCount = cnt;
+        decoded = true;
+    }
+
+    // decodeAgain decodes the statement at line i once more after it has been changed, if it has been decoded before
+    private void decodeAgain(int i) {
+        if (i < decodedCount) {
+            int constantsFrom = pool.size();
+            int indexesFrom = indexList.size();
+            int expressionsFrom = expressionList.size();
+            int argumentsFrom = argumentList.size();
+            decodeStatement(i);
+            extendTables(constantsFrom, indexesFrom, expressionsFrom, argumentsFrom);
+        }
+    }
+
+    // extendTables makes the arrays handed out by getConstants() etc. hold the entries the tables have got
+    // beyond the given sizes
+    private void extendTables(int constantsFrom, int indexesFrom, int expressionsFrom, int argumentsFrom) {
+        constants = (String[]) extend(constants, pool, constantsFrom);
+        indexes = (ClauseIndex[]) extend(indexes, indexList, indexesFrom);
+        expressions = (int[][]) extend(expressions, expressionList, expressionsFrom);
+        argumentLists = (int[][]) extend(argumentLists, argumentList, argumentsFrom);
+    }
+
+    // decodeStatement writes the decoded form of the statement at line i into the code array
+    private void decodeStatement(int i) {
+        int[] result = code;
+        Statement s = (Statement) statements.elementAt(i);
+        int base = i * CODE_WIDTH;
+        result[base] = s.operator;
+        for (int j = 1; j < CODE_WIDTH; j++) {
+            result[base + j] = KIND_NONE;
+        }
+        switch (s.operator) {
+            case Statement.opAllocate:
+                result[base + 1] = environmentSize(i);
+                break;
+            case Statement.opCall:
+            case Statement.opExecute:
+                result[base + 1] = s.jump;
+                break;
+            case Statement.opDispatch:
+                Procedure procedure = (Procedure) dynamics.get(s.arg1);
+                result[base + 1] = (procedure != null) ? procedure.getNumber() : -1;
+                break;
+            case Statement.opTryMeElse:
+                if (s.arg1.startsWith("+")) {
+                    // alternative inside a clause body (e.g. of a negation), no procedure to index
+                    result[base + 1] = target(i, s.arg1);
+                    result[base + 2] = arity(s.arg2);
+                    result[base + 3] = -1;
+                    break;
+                }
+                // the first clause of a procedure also gives access to the procedure's index
+                result[base + 1] = s.jump;
+                result[base + 2] = arity(s.arg2);
+                result[base + 3] = index(i, indexList, indexNumbers);
+                break;
+            case Statement.opRetryMeElse:
+                result[base + 1] = s.jump;
+                result[base + 2] = arity(s.arg2);
+                break;
+            case Statement.opSwitchOnTerm:
+                // variable, constant, list and structure targets
+                result[base + 1] = s.jump;
+                for (int j = 1; j < 4; j++) {
+                    result[base + j + 1] = (s.getArgs().size() > j) ? target(i, (String) s.getArgs().elementAt(j)) : -1;
+                }
+                break;
+            case Statement.opSwitchOnConstant:
+            case Statement.opSwitchOnStructure:
+                result[base + 1] = index(s.jump, indexList, indexNumbers);
+                break;
+            case Statement.opJump:
+                result[base + 1] = target(i, s.arg1);
+                break;
+            case Statement.opSoftCut:
+                result[base + 1] = register(s.arg1);
+                result[base + 2] = target(i, s.arg2);
+                break;
+            case Statement.opCut:
+            case Statement.opGetLevel:
+            case Statement.opGetBarrier:
+                result[base + 1] = register(s.arg1);
+                break;
+            case Statement.opGetVariable:
+            case Statement.opGetValue:
+            case Statement.opPutValue:
+            case Statement.opPutVariable:
+            case Statement.opUnifyVariable:
+                result[base + 1] = register(s.arg1);
+                result[base + 2] = register(s.arg2);
+                break;
+            case Statement.opBigger:
+            case Statement.opBiggerEq:
+            case Statement.opSmaller:
+            case Statement.opSmallerEq:
+            case Statement.opUnequal:
+                result[base + 1] = value(s.arg1, pool, poolIndex, expressionList);
+                result[base + 2] = value(s.arg2, pool, poolIndex, expressionList);
+                break;
+            case Statement.opUnifyList:
+            case Statement.opUnifyStruc:
+                result[base + 1] = register(s.arg1);
+                result[base + 2] = register(s.arg2);
+                result[base + 3] = register(s.arg3);
+                break;
+            case Statement.opPutStructure:
+                // "put_structure X f A1 .. An": target, functor atom and the arguments' operands
+                result[base + 1] = register(s.arg1);
+                result[base + 2] = AtomTable.intern(s.arg2);
+                argumentList.addElement(operands(s, 2, pool, poolIndex));
+                result[base + 3] = argumentList.size() - 1;
+                break;
+            case Statement.opPutSegment:
+                // "put_segment X T E1 .. En": target, then the operands of the tail and the elements
+                result[base + 1] = register(s.arg1);
+                argumentList.addElement(operands(s, 1, pool, poolIndex));
+                result[base + 2] = argumentList.size() - 1;
+                break;
+            case Statement.opGetConstant:
+            case Statement.opPutConstant:
+                result[base + 1] = constant(s.arg1, pool, poolIndex);
+                result[base + 2] = register(s.arg2);
+                break;
+            case Statement.opCreateVariable:
+                result[base + 1] = register(s.arg1);
+                result[base + 2] = constant(s.arg2, pool, poolIndex);
+                break;
+            case Statement.opIs:
+                // "is X expression", or the older "is X op operand1 operand2"
+                result[base + 1] = register(s.arg1);
+                if (s.getArgs().size() > 3) {
+                    String expression = s.arg3 + " " + s.getArgs().elementAt(3) + " " + s.arg2;
+                    result[base + 2] = value(expression, pool, poolIndex, expressionList);
+                } else {
+                    result[base + 2] = value(s.arg2, pool, poolIndex, expressionList);
+                }
+                break;
+        }
+    }
+
+    // extend copies the elements of source from index from on into array, which holds the ones in front
+    // of them already. If it is too small, a copy of twice the size (or more) is filled and returned instead
+    private static Object[] extend(Object[] array, Vector source, int from) {
+        if (array.length < source.size()) {
+            array = Arrays.copyOf(array, Math.max(source.size(), array.length * 2));
+        }
+        for (int i = from; i < source.size(); i++) {
+            array[i] = source.elementAt(i);
+        }
+        return array;
+    }
+
+    // returns the number of entries of the constant pool; getConstants() may return a larger array
+    public int getConstantCount() {
+        if (!decoded) {
+            decode();
+        }
+        return pool.size();
+    }
+
+    // environmentSize returns the number of permanent variables the allocate statement at line
+    // reserves. Code without an explicit size (e.g. hand-written WAM files) gets room for the highest
+    // Yi used up to the next label.
+    private int environmentSize(int line) {
+        Statement s = (Statement) statements.elementAt(line);
+        if (s.arg1.length() > 0) {
+            try {
+                return Integer.parseInt(s.arg1);
+            } catch (NumberFormatException e) {
+            }
+        }
+        int size = 0;
+        for (int i = line + 1; i < statements.size(); i++) {
+            s = (Statement) statements.elementAt(i);
+            if (s.getLabel().length() > 0) {
+                break;
+            }
+            Vector args = s.getArgs();
+            for (int j = 0; j < args.size(); j++) {
+                // arithmetic expressions may hold several registers, separated by blanks
+                String[] registers = ((String) args.elementAt(j)).split(" ");
+                for (int k = 0; k < registers.length; k++) {
+                    int operand = register(registers[k]);
+                    if (((operand & KIND_MASK) == KIND_Y) && ((operand >> KIND_BITS) >= size)) {
+                        size = (operand >> KIND_BITS) + 1;
                     }
                 }
             }
         }
+        return size;
+    }
+
+    // index returns the number of the ClauseIndex for the procedure starting at line firstClause,
+    // reusing the index from earlier decodes if the procedure's clauses have not moved since
+    private int index(int firstClause, Vector indexList, HashMap indexNumbers) {
+        Integer line = new Integer(firstClause);
+        ClauseIndex index = (ClauseIndex) clauseIndexes.get(line);
+        if (index == null) {
+            index = new ClauseIndex(this, firstClause);
+            clauseIndexes.put(line, index);
+        }
+        Integer number = (Integer) indexNumbers.get(index);
+        if (number == null) {
+            number = new Integer(indexList.size());
+            indexList.addElement(index);
+            indexNumbers.put(index, number);
+        }
+        return number.intValue();
+    }
+
+    // target resolves a jump operand of switch_on_term: either a label or an offset like "+2"
+    // relative to the switch statement at line
+    private int target(int line, String operand) {
+        if (operand.startsWith("+")) {
+            try {
+                return line + Integer.parseInt(operand.substring(1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        Integer target = (Integer) labels.get(operand);
+        if (target == null) {
+            return -1;
+        }
+        return target.intValue();
+    }
+
+    // arity decodes the arity operand of try_me_else and retry_me_else, -1 meaning unknown
+    static int arity(String a) {
+        try {
+            return Integer.parseInt(a);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // register encodes a register name like "A3", "Y25" or "Q0" as an operand word
+    static int register(String name) {
+        if (name.length() < 2) {
+            return KIND_NONE;
+        }
+        int kind;
+        switch (name.charAt(0)) {
+            case 'A':
+                kind = KIND_A;
+                break;
+            case 'Y':
+                kind = KIND_Y;
+                break;
+            case 'Q':
+                kind = KIND_Q;
+                break;
+            default:
+                return KIND_NONE;
+        }
+        int index = 0;
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0') || (c > '9') || (index > (Integer.MAX_VALUE >> KIND_BITS) / 10)) {
+                return KIND_NONE;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return (index << KIND_BITS) | kind;
+    }
+
+    // operands encodes the operands of s from the given one on, each a register or a constant
+    private static int[] operands(Statement s, int first, Vector pool, HashMap poolIndex) {
+        Vector args = s.getArgs();
+        int[] result = new int[args.size() - first];
+        for (int i = 0; i < result.length; i++) {
+            String a = (String) args.elementAt(i + first);
+            result[i] = (register(a) != KIND_NONE) ? register(a) : constant(a, pool, poolIndex);
+        }
+        return result;
+    }
+
+    // constant encodes a constant as a reference into the constant pool, sharing equal entries
+    private static int constant(String c, Vector pool, HashMap poolIndex) {
+        Integer index = (Integer) poolIndex.get(c);
+        if (index == null) {
+            index = new Integer(pool.size());
+            pool.addElement(c);
+            poolIndex.put(c, index);
+        }
+        return (index.intValue() << KIND_BITS) | KIND_CONST;
+    }
+
+    // value encodes an arithmetic operand: a register, an immediate integer, an expression in postfix
+    // form or (if none of these) a constant
+    private static int value(String v, Vector pool, HashMap poolIndex, Vector expressionList) {
+        int result = register(v);
+        if (result != KIND_NONE) {
+            return result;
+        }
+        // "pi" and "e" are expressions of their own
+        int function = Arithmetic.lookup(v);
+        if ((v.indexOf(' ') > 0) || ((function >= 0) && (Arithmetic.arity(function) == 0))) {
+            int[] expression = expression(v, pool, poolIndex);
+            if (expression != null) {
+                expressionList.addElement(expression);
+                return ((expressionList.size() - 1) << KIND_BITS) | KIND_EXPR;
+            }
+        }
+        if (v.length() > 0) {
+            int number = 0;
+            int i = 0;
+            while ((i < v.length()) && (v.charAt(i) >= '0') && (v.charAt(i) <= '9') && (number <= (Integer.MAX_VALUE >> KIND_BITS) / 10)) {
+                number = number * 10 + (v.charAt(i++) - '0');
+            }
+            if ((i == v.length()) && (number <= (Integer.MAX_VALUE >> KIND_BITS))) {
+                return (number << KIND_BITS) | KIND_INT;
+            }
+        }
+        return constant(v, pool, poolIndex);
+    }
+
+    // expression decodes an arithmetic expression in postfix form, e.g. "Y1 Y2 * 3 +". The first word
+    // of the result is the evaluation stack depth it needs, followed by one word per element: an
+    // operand word or a KIND_OP word holding the function number. Returns null for invalid expressions
+    private static int[] expression(String v, Vector pool, HashMap poolIndex) {
+        Vector elements = new Vector();
+        int start = 0;
+        while (start < v.length()) {
+            int end = v.indexOf(' ', start);
+            if (end < 0) {
+                end = v.length();
+            }
+            if (end > start) {
+                elements.addElement(v.substring(start, end));
+            }
+            start = end + 1;
+        }
+        int[] result = new int[elements.size() + 1];
+        int depth = 0;
+        for (int i = 0; i < elements.size(); i++) {
+            String e = (String) elements.elementAt(i);
+            int function = ((register(e) == KIND_NONE) && (Wam.numberKind(e) == Wam.CON)) ? Arithmetic.lookup(e) : -1;
+            if (function >= 0) {
+                depth -= Arithmetic.arity(function);
+                if (depth < 0) {
+                    return null;
+                }
+                result[i + 1] = (function << KIND_BITS) | KIND_OP;
+            } else {
+                result[i + 1] = value(e, pool, poolIndex, null);
+            }
+            depth++;
+            result[0] = Math.max(result[0], depth);
+        }
+        return (depth == 1) ? result : null;
     }
 
     public String toString() {
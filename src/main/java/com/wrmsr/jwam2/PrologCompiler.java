@@ -11,10 +11,23 @@ package com.wrmsr.jwam2;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class PrologCompiler extends Compiler {
+    // version of the code generated, part of the CodeCache keys along with the hash of the compiler's
+    // class files (see CodeCache.version()): to be changed along with the format of the cache entries
+    public static final String VERSION = "jwam2-1";
+
+    private static final int BATCH_SIZE = 1024;  // clauses read before the pool gets to work on them
+    private static final int TASK_SIZE = 32;     // most clauses a single task works on
+    private static ForkJoinPool pool;            // shared by all consults, created when first needed
+
     public PrologCompiler(Wam anOwner) {
         owner = anOwner;
         errorString = "";
@@ -22,35 +35,13 @@ public class PrologCompiler extends Compiler {
     }
 
     public Program compile(String programCode) {
-        long ms = System.currentTimeMillis();
-        owner.debug("Program Code:", 2);
-        owner.debug(programCode, 2);
-        Vector programList = stringToList(programCode);
-        owner.debug("Program List:", 2);
-        owner.debug("String to List: " + (System.currentTimeMillis() - ms) + " ms.", -1);
-        owner.debug(programList.toString(), 2);
-        CompilerStructure struc = new CompilerStructure();
-
-        ms = System.currentTimeMillis();
-        if ((program(programList, struc)) && (programList.size() == 0)) {
-            owner.debug("List to Structure: " + (System.currentTimeMillis() - ms) + " ms.", -1);
-            updateNames(struc);
-            owner.debug(struc.toString(), 2);
-            ms = System.currentTimeMillis();
-            Program p = structureToCode(struc);
-            owner.debug("Structure to Code: " + (System.currentTimeMillis() - ms) + " ms.", -1);
-            return p;
-        } else {
-            if (errorString.length() > 0) {
-                owner.writeLn(errorString);
-            }
-            return null;
-        }
+        Program result = new Program(owner);
+        return compile(programCode, null, result, null) ? result : null;
     }
 
     // compileSimpleClause can be used in order to implement assert(...) operations
     public Program compileSimpleClause(String programCode) {
-        Vector programList = stringToList(programCode);
+        TokenList programList = stringToList(programCode);
         CompilerStructure struc = new CompilerStructure();
         if ((clause(programList, struc)) && (programList.size() == 0)) {
             CompilerStructure program = new CompilerStructure();
@@ -62,63 +53,300 @@ public class PrologCompiler extends Compiler {
             return null;
     }
 
-    public Program compileFile(String fileName) {
-        String code = "";
-        String dummy;
+    // compileFact compiles a fact given as a term of the running WAM, as assert does. The code is the
+    // same compileSimpleClause gives for the term's text, but the term is neither printed nor parsed
+    // again, so quoted atoms, floats and shared variables come through unchanged. Returns null if the
+    // term is neither an atom nor a structure with an atom as its functor
+    public Program compileFact(Wam.Variable fact) {
+        fact = fact.deref();
+        CompilerStructure head = new CompilerStructure();
+        head.type = head.HEAD;
+        if (fact.tag == Wam.CON) {
+            head.head = new CompilerStructure(head.PREDICATE, AtomTable.name(fact.atom));
+            head.tail = null;
+        } else if ((fact.tag == Wam.STR) && (fact.functor() >= 0)) {
+            head.head = new CompilerStructure(head.PREDICATE, AtomTable.name(fact.functor()));
+            head.tail = arguments(fact.args, new HashMap());
+        } else {
+            return null;
+        }
+        CompilerStructure program = new CompilerStructure(head.PROGRAM, "", new CompilerStructure(head.CLAUSE, "", head, null), null);
+        updateNames(program);
+        return structureToCode(program);
+    }
+
+    // term converts a term into the structure the parser gives for its text. Unbound variables are
+    // named "_0", "_1" and so on, names maps each of them to its name
+    private CompilerStructure term(Wam.Variable v, HashMap names) {
+        v = v.deref();
+        CompilerStructure result = new CompilerStructure();
+        if (v.tag == Wam.REF) {
+            String name = (String) names.get(v);
+            if (name == null) {
+                name = "_" + names.size();
+                names.put(v, name);
+            }
+            result.type = result.VARIABLE;
+            result.value = name;
+        } else if ((v.tag == Wam.LIS) || (v.tag == Wam.SEG)) {
+            // lists are followed along their tails, only their elements are converted recursively
+            CompilerStructure s = result;
+            while (true) {
+                s.type = s.LIST;
+                s.head = term((v.tag == Wam.LIS) ? v.head : v.element(0), names);
+                Wam.Variable rest = ((v.tag == Wam.LIS) ? v.tail : v.rest(1)).deref();
+                if ((rest.tag == Wam.LIS) || (rest.tag == Wam.SEG)) {
+                    s.tail = new CompilerStructure();
+                    s = s.tail;
+                    v = rest;
+                } else {
+                    s.tail = ((rest.tag == Wam.CON) && (AtomTable.name(rest.atom).compareTo("[]") == 0)) ? null : term(rest, names);
+                    break;
+                }
+            }
+        } else if (v.tag == Wam.STR) {
+            result.type = result.STRUCTURE;
+            result.head = (v.atom >= 0) ? new CompilerStructure(result.CONSTANT, AtomTable.name(v.atom)) : term(v.head, names);
+            result.tail = arguments(v.args, names);
+        } else {
+            result.type = result.CONSTANT;
+            result.value = v.value();
+        }
+        return result;
+    }
+
+    // arguments converts the arguments of a structure into the list the parser gives for them
+    private CompilerStructure arguments(Wam.Variable[] args, HashMap names) {
+        CompilerStructure result = null;
+        for (int i = args.length - 1; i >= 0; i--) {
+            CompilerStructure list = new CompilerStructure();
+            list.type = list.LIST;
+            list.head = term(args[i], names);
+            list.tail = result;
+            result = list;
+        }
+        return result;
+    }
+
+    // compileFile compiles a Prolog file clause by clause, appending each clause's code to target as
+    // soon as it has been compiled. Returns false, with target left unchanged, if the file cannot be
+    // read or is no valid program
+    public boolean compileFile(String fileName, Program target) {
+        String code = null;
+        if (fileName.compareToIgnoreCase("stdin") == 0) {
+            // the program typed in can only be read once, so it is kept for both passes
+            owner.writeLn("Please type in your Prolog program. EOF is indicated by \"#\".");
+            StringBuffer text = new StringBuffer();
+            try {
+                BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while (((line = r.readLine()) != null) && (line.compareTo("#") != 0)) {
+                    text.append(line).append('\n');
+                }
+            } catch (IOException io) {
+                owner.writeLn("File \"" + fileName + "\" could not be opened.");
+                return false;
+            }
+            code = text.toString();
+        } else if (owner.getCacheDirectory().length() > 0) {
+            // the code of a file compiled before is taken from the cache
+            CodeCache cache = new CodeCache(owner.getCacheDirectory());
+            String key;
+            try {
+                key = CodeCache.key(fileName);
+            } catch (IOException io) {
+                owner.writeLn("File \"" + fileName + "\" could not be opened.");
+                return false;
+            }
+            if (cache.load(key, target)) {
+                owner.debug("Loaded from cache: " + key, -1);
+                return true;
+            }
+            cache.startEntry(key);
+            if (!compile(null, fileName, target, cache)) {
+                cache.abortEntry();
+                return false;
+            }
+            cache.finishEntry();
+            return true;
+        }
+        return compile(code, fileName, target, null);
+    }
+
+    // compile compiles the clauses of code, or of the file fileName if code is null, and appends
+    // them to target. The text is read twice: the first pass checks the syntax and counts the
+    // clauses of each procedure, which the second one needs in order to chain a procedure's
+    // clauses, as it compiles them and appends their code (and writes it to cache, if given)
+    private boolean compile(String code, String fileName, Program target, CodeCache cache) {
+        HashMap counts = new HashMap();
         try {
             long ms = System.currentTimeMillis();
-            long atAll = ms;
-            BufferedReader r;
-            if (fileName.compareToIgnoreCase("stdin") == 0) {
-                owner.writeLn("Please type in your Prolog program. EOF is indicated by \"#\".");
-                r = new BufferedReader(new InputStreamReader(System.in));
-            } else
-                r = new BufferedReader(new FileReader(fileName));
-            do {
-                dummy = r.readLine();
-                if (dummy != null) {
-                    if (dummy.compareTo("#") == 0) break;
-                    code += " " + dummy;
-                }
-            } while (dummy != null);
-            owner.debug("File Operations: " + (System.currentTimeMillis() - ms) + " ms.", -1);
-            Program p = compile(code);
-            return p;
-        } catch (Exception io) {
+            if (!pass(code, fileName, counts, null, null)) {
+                return false;
+            }
+            owner.debug("Syntax Check: " + (System.currentTimeMillis() - ms) + " ms.", -1);
+            ms = System.currentTimeMillis();
+            pass(code, fileName, counts, target, cache);
+            owner.debug("Structure to Code: " + (System.currentTimeMillis() - ms) + " ms.", -1);
+            return true;
+        } catch (IOException io) {
             owner.writeLn("File \"" + fileName + "\" could not be opened.");
-            return null;
+            return false;
         }
     }
 
-    private int getProcedureCount(String name, Vector list) {
-        for (int i = 0; i < list.size(); i++) {
-            if (((KeyValue) list.elementAt(i)).key.compareTo(name) == 0) {
-                return ((KeyValue) list.elementAt(i)).intValue;
+    // pass reads the clauses of the text and has the pool parse (or compile) them, a batch at a
+    // time. Without a target it checks their syntax and counts the clauses of each procedure in
+    // counts; with one it compiles them, numbering the clauses of a procedure up to the count
+    // found before, and appends their code to target in the order of the text. So the code is
+    // the same whatever the number of threads, and only a batch of clauses is held in memory
+    private boolean pass(String code, String fileName, HashMap counts, Program target, CodeCache cache) throws IOException {
+        BufferedReader r = open(code, fileName);
+        Tokenizer tokenizer = new Tokenizer();
+        HashMap numbers = new HashMap();
+        TokenList[] clauses = new TokenList[BATCH_SIZE];
+        String[] names = new String[BATCH_SIZE];
+        int n = 0;
+        boolean valid = true;
+        TokenList tokens;
+        do {
+            tokens = nextClause(r, tokenizer);
+            if (tokens != null) {
+                // the first token of a clause is the name of its procedure
+                String name = tokens.peek(0);
+                int number = getProcedureCount(name, numbers) + 1;
+                numbers.put(name, new Integer(number));
+                names[n] = name + "~" + number + "/" + getProcedureCount(name, counts);
+                clauses[n++] = tokens;
+            }
+            if ((n == BATCH_SIZE) || ((tokens == null) && (n > 0))) {
+                valid = runBatch(clauses, names, n, target, cache);
+                n = 0;
             }
+        } while ((valid) && (tokens != null));
+        r.close();
+        if (target == null) {
+            counts.putAll(numbers);
         }
-        return 0;
+        return (valid) && (!tokenizer.hasFailed()) && (numbers.size() > 0);
     }
 
-    private void setProcedureCount(String name, int count, Vector list) {
-        for (int i = 0; i < list.size(); i++) {
-            if (((KeyValue) list.elementAt(i)).key.compareTo(name) == 0) {
-                ((KeyValue) list.elementAt(i)).intValue = count;
+    // runBatch parses the first count clauses (and compiles them if target is given) on the pool,
+    // then appends their code to target one after the other. Returns false if a clause is invalid
+    private boolean runBatch(TokenList[] clauses, String[] names, int count, Program target, CodeCache cache) {
+        Program[] code = (target == null) ? null : new Program[count];
+        String[] errors = new String[count];
+        getPool().invoke(new ClauseTask(owner, clauses, names, code, errors, 0, count));
+        for (int i = 0; i < count; i++) {
+            clauses[i] = null;
+            if (errors[i] != null) {
+                if (errors[i].length() > 0) {
+                    owner.writeLn(errors[i]);
+                }
+                return false;
+            }
+            if (target != null) {
+                if ((owner.debugOn > 1) && (code[i] != null)) {  // in case of debug mode, display the WAM code
+                    owner.writeLn(code[i].toString());
+                }
+                target.append(code[i]);
+                if (cache != null) {
+                    cache.addClause(code[i]);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool();
+        }
+        return pool;
+    }
+
+    // a ClauseTask parses the clauses from..to-1 of a batch, each worker with a compiler of its own,
+    // as the variable tables are kept in the compiler. Clauses are independent of each other once
+    // named, so they can be compiled in any order; errors[i] is set if clause i is invalid
+    private static class ClauseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Wam owner;
+        private final TokenList[] clauses;
+        private final String[] names;
+        private final Program[] code;    // the clauses' code, null if they are only to be checked
+        private final String[] errors;
+        private final int from;
+        private final int to;
+
+        ClauseTask(Wam anOwner, TokenList[] aClauses, String[] aNames, Program[] aCode, String[] anErrors, int aFrom, int aTo) {
+            owner = anOwner;
+            clauses = aClauses;
+            names = aNames;
+            code = aCode;
+            errors = anErrors;
+            from = aFrom;
+            to = aTo;
+        }
+
+        protected void compute() {
+            if (to - from > TASK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ClauseTask(owner, clauses, names, code, errors, from, middle),
+                        new ClauseTask(owner, clauses, names, code, errors, middle, to));
                 return;
             }
+            PrologCompiler compiler = new PrologCompiler(owner);
+            for (int i = from; i < to; i++) {
+                CompilerStructure struc = new CompilerStructure();
+                compiler.errorString = "";
+                if ((!compiler.clause(clauses[i], struc)) || (clauses[i].size() > 0)) {
+                    errors[i] = compiler.errorString;
+                } else if (code != null) {
+                    struc.head.head.value = names[i];
+                    code[i] = compiler.structureToCode(struc);
+                }
+            }
+        }
+    }
+
+    private static BufferedReader open(String code, String fileName) throws IOException {
+        if (code != null) {
+            return new BufferedReader(new StringReader(code));
+        }
+        return new BufferedReader(new FileReader(fileName));
+    }
+
+    // nextClause reads lines from r until tokenizer has the tokens of a complete clause, which it
+    // returns; null at the end of the text. A line holding just "#" ends the text as well
+    private static TokenList nextClause(BufferedReader r, Tokenizer tokenizer) throws IOException {
+        Vector clause = tokenizer.nextClause();
+        while ((clause == null) && (!tokenizer.isFinished())) {
+            String line = r.readLine();
+            if ((line == null) || (line.compareTo("#") == 0)) {
+                tokenizer.finish();
+            } else {
+                tokenizer.feed(" " + line);
+            }
+            clause = tokenizer.nextClause();
         }
-        list.addElement(new KeyValue(name, count));
-        return;
+        return (clause == null) ? null : new TokenList(clause);
+    }
+
+    private static int getProcedureCount(String name, HashMap counts) {
+        Integer count = (Integer) counts.get(name);
+        return (count == null) ? 0 : count.intValue();
     }
 
     private void updateNames(CompilerStructure struc) {
-        Vector procedureCount = new Vector();
+        HashMap procedureCount = new HashMap();
         CompilerStructure s, proc;
         if ((struc.type == struc.PROGRAM) && (struc.head != null)) {
             s = struc;
             do {
                 proc = s.head.head.head;
-                int cnt = getProcedureCount(proc.value, procedureCount);
-                setProcedureCount(proc.value, ++cnt, procedureCount);
+                int cnt = getProcedureCount(proc.value, procedureCount) + 1;
+                procedureCount.put(proc.value, new Integer(cnt));
                 proc.value = proc.value + '~' + cnt;
                 s = s.tail;
             } while (s != null);
@@ -9,8 +9,6 @@
  ******************************************************************************/
 package com.wrmsr.jwam2;
 
-import java.util.Vector;
-
 public class QueryCompiler extends Compiler {
     public QueryCompiler(Wam anOwner) {
         owner = anOwner;
@@ -18,8 +16,8 @@ public class QueryCompiler extends Compiler {
         varPrefix = "Q";
     } 
 
-    private boolean query(Vector prog, CompilerStructure struc) {
-        Vector oldProg = (Vector) prog.clone();
+    private boolean query(TokenList prog, CompilerStructure struc) {
+        int mark = prog.mark();
         struc.type = struc.QUERY;
         struc.head = new CompilerStructure();
         struc.tail = new CompilerStructure();
@@ -32,13 +30,12 @@ public class QueryCompiler extends Compiler {
             struc.head.tail = null;
             return true;
         }
-        prog.clear();
-        prog.addAll(oldProg);
+        prog.reset(mark);
         return false;
     } 
 
     public Program compile(String aQuery) {
-        Vector queryList = stringToList(aQuery);
+        TokenList queryList = stringToList(aQuery);
         CompilerStructure struc = new CompilerStructure();
         errorString = "";
         owner.debug("List:      " + queryList, 2);
@@ -50,7 +47,7 @@ public class QueryCompiler extends Compiler {
                 return null;
             }
             owner.debug("Structure: " + struc, 2);
-            substitutionList = new Vector();
+            newVariables();
             return structureToCode(struc);
         }
         if (errorString.length() > 0) {
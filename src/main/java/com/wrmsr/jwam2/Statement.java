@@ -42,7 +42,17 @@ public class Statement {
     public static final int opUnifyVariable = 25;
     public static final int opBiggerEq = 27;
     public static final int opSmallerEq = 28;
-    public static final int opNotCall = 29;
+    public static final int opExecute = 30;
+    public static final int opSwitchOnTerm = 31;
+    public static final int opSwitchOnConstant = 32;
+    public static final int opSwitchOnStructure = 33;
+    public static final int opFail = 34;
+    public static final int opGetBarrier = 35;
+    public static final int opJump = 36;
+    public static final int opSoftCut = 37;
+    public static final int opPutStructure = 38;
+    public static final int opPutSegment = 39;
+    public static final int opDispatch = 40;
 
     public static final int callWrite = -10;
     public static final int callWriteLn = -11;
@@ -58,6 +68,9 @@ public class Statement {
     public static final int callIsBound = -21;
     public static final int callReadLn = -22;
     public static final int callCall = -23;
+    public static final int callLength = -24;
+    public static final int callNth = -25;
+    public static final int callLast = -26;
 
     private String label;      // the label (used for jumping hin und her)
     private String function;   // the operator
@@ -110,6 +123,29 @@ public class Statement {
         doCommonStuff();
     }
 
+    // creates a new statement with the given operands, taken as they are, e.g. when code is read back
+    public Statement(String aLabel, String aFunction, String[] operands) {
+        this(aLabel, aFunction, functionToInt(aFunction), operands);
+    }
+
+    // creates a new statement whose operator number is known already, e.g. from an object file
+    public Statement(String aLabel, String aFunction, int anOperator, String[] operands) {
+        label = aLabel;
+        function = aFunction;
+        args = new Vector(Math.max(operands.length, 3));
+        for (int i = 0; i < operands.length; i++) {
+            args.addElement(operands[i]);
+        }
+        while (args.size() < 3) {
+            args.addElement("");
+        }
+        jump = -1;
+        operator = anOperator;
+        arg1 = (String) args.elementAt(0);
+        arg2 = (String) args.elementAt(1);
+        arg3 = (String) args.elementAt(2);
+    }
+
     private void doCommonStuff() {
         jump = -1;
         operator = functionToInt(function);
@@ -118,12 +154,15 @@ public class Statement {
         arg3 = (String) args.elementAt(2);
     }
 
-    public int functionToInt(String function) {
+    public static int functionToInt(String function) {
         if (function.compareTo("allocate") == 0) return opAllocate;
         if (function.compareTo("bigger") == 0) return opBigger;
         if (function.compareTo("biggereq") == 0) return opBiggerEq;
         if (function.compareTo("call") == 0) return opCall;
-        if (function.compareTo("not_call") == 0) return opNotCall;
+        if (function.compareTo("execute") == 0) return opExecute;
+        if (function.compareTo("switch_on_term") == 0) return opSwitchOnTerm;
+        if (function.compareTo("switch_on_constant") == 0) return opSwitchOnConstant;
+        if (function.compareTo("switch_on_structure") == 0) return opSwitchOnStructure;
         if (function.compareTo("create_variable") == 0) return opCreateVariable;
         if (function.compareTo("cut") == 0) return opCut;
         if (function.compareTo("deallocate") == 0) return opDeallocate;
@@ -131,10 +170,17 @@ public class Statement {
         if (function.compareTo("get_value") == 0) return opGetValue;
         if (function.compareTo("get_variable") == 0) return opGetVariable;
         if (function.compareTo("get_level") == 0) return opGetLevel;
+        if (function.compareTo("get_barrier") == 0) return opGetBarrier;
+        if (function.compareTo("fail") == 0) return opFail;
+        if (function.compareTo("jump") == 0) return opJump;
+        if (function.compareTo("soft_cut") == 0) return opSoftCut;
+        if (function.compareTo("dispatch") == 0) return opDispatch;
         if (function.compareTo("halt") == 0) return opHalt;
         if (function.compareTo("is") == 0) return opIs;
         if (function.compareTo("proceed") == 0) return opProceed;
         if (function.compareTo("put_constant") == 0) return opPutConstant;
+        if (function.compareTo("put_structure") == 0) return opPutStructure;
+        if (function.compareTo("put_segment") == 0) return opPutSegment;
         if (function.compareTo("put_value") == 0) return opPutValue;
         if (function.compareTo("put_variable") == 0) return opPutVariable;
         if (function.compareTo("retry_me_else") == 0) return opRetryMeElse;
@@ -175,6 +221,25 @@ public class Statement {
         return args;
     }
 
+    // replaces the first two operands, e.g. when assert or retract turn a trust_me into a
+    // try_me_else or vice versa
+    public void setArgs(String newArg1, String newArg2) {
+        args.setElementAt(newArg1, 0);
+        args.setElementAt(newArg2, 1);
+        arg1 = newArg1;
+        arg2 = newArg2;
+    }
+
+    // replaces the first three operands, e.g. when the clause chain of an indexed procedure changes
+    public void setArgs(String newArg1, String newArg2, String newArg3) {
+        while (args.size() < 3) {
+            args.addElement("");
+        }
+        setArgs(newArg1, newArg2);
+        args.setElementAt(newArg3, 2);
+        arg3 = newArg3;
+    }
+
     // for code dumping: print the statement: "label: operator op1 op2"
     public String toString() {
         if (label.compareTo(";") == 0) {
@@ -0,0 +1,57 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * TokenList.java contains the TokenList class, the token sequence the
+ * Compiler's parser reads from.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.util.Vector;
+
+// A TokenList holds the tokens of a program or query in an array and a cursor pointing to the next
+// one. Parsing a token moves the cursor, and backtracking goes back to a position taken by mark()
+// before, so neither one copies any tokens.
+public class TokenList {
+    private final String[] tokens;
+    private int position;
+
+    public TokenList(Vector aTokens) {
+        tokens = (String[]) aTokens.toArray(new String[aTokens.size()]);
+    }
+
+    // returns the number of tokens not parsed yet
+    public int size() {
+        return tokens.length - position;
+    }
+
+    // peek returns the token i places behind the cursor (0 being the next one)
+    public String peek(int i) {
+        return tokens[position + i];
+    }
+
+    // skip moves the cursor behind the next token
+    public void skip() {
+        position++;
+    }
+
+    // mark returns the cursor's position, which reset goes back to
+    public int mark() {
+        return position;
+    }
+
+    public void reset(int aPosition) {
+        position = aPosition;
+    }
+
+    // lists the tokens not parsed yet, for debug output
+    public String toString() {
+        StringBuffer result = new StringBuffer("[");
+        for (int i = position; i < tokens.length; i++) {
+            if (i > position) {
+                result.append(", ");
+            }
+            result.append(tokens[i]);
+        }
+        return result.append("]").toString();
+    }
+}
@@ -0,0 +1,147 @@
+/******************************************************************************
+ * Warren's Abstract Machine  -  Implementation by Stefan Buettcher
+ *
+ * Tokenizer.java contains the Tokenizer class, which splits Prolog text into
+ * the tokens the Compiler's parser reads.
+ ******************************************************************************/
+package com.wrmsr.jwam2;
+
+import java.util.Vector;
+
+// A Tokenizer is fed the text piece by piece, e.g. line by line as it is read from a file, and
+// hands out the tokens clause by clause: a clause ends with a "." outside of any parentheses or
+// brackets. A token may go on in the next piece, so the pieces must be separated by blanks the way
+// the lines of a file are joined.
+public class Tokenizer {
+    private StringBuffer token = new StringBuffer();  // the token being read
+    private boolean quoted;     // true while reading a quoted atom
+    private boolean failed;     // true if a quote has turned up within a token
+    private boolean finished;   // true once the end of the text has been reached
+    private Vector tokens = new Vector();   // tokens of the clause being read
+    private Vector clauses = new Vector();  // complete clauses (Vector of tokens) not handed out yet
+    private int depth;          // number of parentheses and brackets open in the clause being read
+
+    // feed tokenizes the next piece of text
+    public void feed(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char pos = text.charAt(i);
+            char next = (i + 1 < text.length()) ? text.charAt(i + 1) : ' ';
+
+            if (quoted) {
+                token.append(pos);
+                quoted = (pos != '\'');
+            } else if (pos == '\'') {
+                if (token.length() > 0) {
+                    failed = true;
+                }
+                token.append(pos);
+                quoted = true;
+            } else if ((token.length() > 0) && (next >= '0') && (next <= '9') && (continuesNumber(token.toString(), pos))) {
+                token.append(pos);
+            } else if (pos == ' ') {
+                endToken();
+            } else if ((pos == '(') ||
+                    (pos == ')') ||
+                    (pos == '[') ||
+                    (pos == ']') ||
+                    (pos == ',') ||
+                    (pos == '.') ||
+                    (pos == '|') ||
+                    (pos == '=') ||
+                    (pos == '<') ||
+                    (pos == '>') ||
+                    (pos == '%') ||
+                    (pos == '\\') ||
+                    (pos == '+') ||
+                    (pos == '-') ||
+                    (pos == '*') ||
+                    (pos == '/') ||
+                    (pos == '^') ||
+                    (pos == ';')
+            ) {
+                endToken();
+                if ((i + 1 < text.length()) && (isOperatorPair(pos, next))) {
+                    // two-character operators like "//", "**", "<<" or "->" make up a single token
+                    i++;
+                    add("" + pos + next);
+                } else {
+                    add(String.valueOf(pos));
+                }
+            } else {
+                token.append(pos);
+            }
+        }
+    }
+
+    // finish tells the tokenizer that the text has ended, completing the last token and clause
+    public void finish() {
+        endToken();
+        finished = true;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // returns true if the text is no valid token sequence (a quote within a token)
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    // nextClause returns the tokens of the next complete clause, null if there is none (yet). Once
+    // the text has ended, the tokens behind the last clause are handed out as if they were one
+    public Vector nextClause() {
+        if (clauses.size() > 0) {
+            Vector result = (Vector) clauses.elementAt(0);
+            clauses.removeElementAt(0);
+            return result;
+        }
+        if ((finished) && (tokens.size() > 0)) {
+            Vector result = tokens;
+            tokens = new Vector();
+            return result;
+        }
+        return null;
+    }
+
+    private void endToken() {
+        if (token.length() > 0) {
+            add(token.toString());
+            token.setLength(0);
+        }
+    }
+
+    private void add(String tok) {
+        tokens.addElement(tok);
+        if ((tok.compareTo("(") == 0) || (tok.compareTo("[") == 0)) {
+            depth++;
+        } else if ((tok.compareTo(")") == 0) || (tok.compareTo("]") == 0)) {
+            depth--;
+        } else if ((tok.compareTo(".") == 0) && (depth <= 0)) {
+            clauses.addElement(tokens);
+            tokens = new Vector();
+            depth = 0;
+        }
+    }
+
+    private static boolean isOperatorPair(char first, char second) {
+        return ((first == '*') && (second == '*')) || ((first == '/') && (second == '/')) ||
+                ((first == '<') && (second == '<')) || ((first == '>') && (second == '>')) ||
+                ((first == '/') && (second == '\\')) || ((first == '\\') && (second == '/')) ||
+                ((first == '-') && (second == '>'));
+    }
+
+    // continuesNumber returns true if pos, followed by a digit, belongs to the number token started
+    // by dummy: the point of "3.14" or the exponent sign of "1.5e-3"
+    private static boolean continuesNumber(String dummy, char pos) {
+        if (pos == '.') {
+            int kind = Wam.numberKind(dummy);
+            return (kind == Wam.INT) || (kind == Wam.BIG);
+        }
+        if ((pos == '+') || (pos == '-')) {
+            char last = dummy.charAt(dummy.length() - 1);
+            return ((last == 'e') || (last == 'E')) && (Wam.numberKind(dummy + "0") == Wam.FLT);
+        }
+        return false;
+    }
+}
@@ -56,10 +56,10 @@ public class Variable {
 
     // dereferencing: if this variable points to another var, then return that dereferenced
     public Variable deref() {
-        if ((tag == REF) && (reference != this))
-            return reference.deref();
-        else
-            return this;
+        Variable result = this;
+        while ((result.tag == REF) && (result.reference != result))
+            result = result.reference;
+        return result;
     }
 
     public void setReference(Variable v) {
@@ -86,43 +86,76 @@ public class Variable {
 
     // returns a string in the form NAME = VALUE, representing the variable's value
     public String toString() {
-        if (tag == CON) {
-            if (value.indexOf(' ') < 0) {
-                if ((value.length() > 2) && (value.indexOf(".0") == value.length() - 2)) {
-                    return value.substring(0, value.length() - 2);
-                } else {
-                    return value;
-                }
-            } else {
-                return ("'" + value + "'");
-            }
-        }
-        if (tag == LIS) {
-            return "[" + toString2() + "]";
-        }
-        if (tag == STR) {
-            String result = head.toString() + "(" + tail.toString2() + ")";
-            return result;
-        }
-        if (tag == REF) {
-            if (reference == this) {
-                return "_"; // "(unbound variable)";
-            } else {
-                return deref().toString();
-            }
-        }
-        return "";
+        return print(false);
     }
 
     public String toString2() {
-        if (tag == LIS) {
-            String result = head.toString();
-            if ((tail != null) && (tail.tag != tail.CON)) {
-                result += ", " + tail.toString2();
+        return print(true);
+    }
+
+    // print returns the text of this variable, or of its list elements if elements is set, keeping
+    // the pending parts on an explicit stack instead of recursing: a Variable entry is printed as a
+    // term if its mode is 0 and as list elements if it is 1, a String entry is copied as it is
+    private String print(boolean elements) {
+        StringBuilder result = new StringBuilder();
+        Object[] stack = new Object[16];
+        int[] modes = new int[16];
+        int top = 0;
+        stack[top] = this;
+        modes[top++] = elements ? 1 : 0;
+        while (top > 0) {
+            if (top + 3 > stack.length) {
+                Object[] newStack = new Object[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, top);
+                stack = newStack;
+                int[] newModes = new int[modes.length * 2];
+                System.arraycopy(modes, 0, newModes, 0, top);
+                modes = newModes;
+            }
+            Object item = stack[--top];
+            stack[top] = null;
+            if (item instanceof String) {
+                result.append((String) item);
+                continue;
+            }
+            Variable v = (Variable) item;
+            if (modes[top] == 1) {
+                if (v.tag == LIS) {
+                    if ((v.tail != null) && (v.tail.tag != CON)) {
+                        stack[top] = v.tail;
+                        modes[top++] = 1;
+                        stack[top++] = ", ";
+                    }
+                    stack[top] = v.head;
+                    modes[top++] = 0;
+                }
+                continue;
             }
-            return result;
+            v = v.deref();
+            if (v.tag == CON) {
+                String value = v.value;
+                if (value.indexOf(' ') >= 0)
+                    result.append("'").append(value).append("'");
+                else if ((value.length() > 2) && (value.indexOf(".0") == value.length() - 2))
+                    result.append(value, 0, value.length() - 2);
+                else
+                    result.append(value);
+            } else if (v.tag == LIS) {
+                result.append('[');
+                stack[top++] = "]";
+                stack[top] = v;
+                modes[top++] = 1;
+            } else if (v.tag == STR) {
+                stack[top++] = ")";
+                stack[top] = v.tail;
+                modes[top++] = 1;
+                stack[top++] = "(";
+                stack[top] = v.head;
+                modes[top++] = 0;
+            } else if (v.tag == REF)
+                result.append("_"); // "(unbound variable)";
         }
-        return "";
+        return result.toString();
     }
 
 } 
@@ -3,8 +3,8 @@
  *
  * developed:   December 2001 until February 2002
  *
- * WAM.java contains the actual WAM and the additional structures ChoicePoint,
- * Environment and Trail
+ * WAM.java contains the actual WAM and the additional structures ChoicePoint
+ * and Trail
  ******************************************************************************/
 package com.wrmsr.jwam2;
 
@@ -12,6 +12,8 @@ import java.awt.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.Vector;
 
 // class WAM is the core and contains the essential functions of the WAM
@@ -20,7 +22,11 @@ public class Wam {
     public static final int REF = 1;  // tag == REF means this variable is a reference
     public static final int CON = 2;  // this one has been bound to an immediate constant
     public static final int LIS = 3;  // is a list
-    public static final int STR = 4;  // is a structure
+    public static final int STR = 4;  // is a structure: functor atom and argument array
+    public static final int INT = 5;  // has been bound to an integer number that fits into a long
+    public static final int FLT = 6;  // has been bound to a floating point number
+    public static final int BIG = 7;  // has been bound to an integer number too large for a long
+    public static final int SEG = 8;  // is a packed list segment: an array of elements followed by a tail
 
     public static final int ASSERT = 9;  // this variable is no real variable but only used for trailing assert operations
 
@@ -51,7 +57,17 @@ public class Wam {
     public static final int opUnifyVariable = 25;
     public static final int opBiggerEq = 27;
     public static final int opSmallerEq = 28;
-    public static final int opNotCall = 29;
+    public static final int opExecute = 30;
+    public static final int opSwitchOnTerm = 31;
+    public static final int opSwitchOnConstant = 32;
+    public static final int opSwitchOnStructure = 33;
+    public static final int opFail = 34;
+    public static final int opGetBarrier = 35;
+    public static final int opJump = 36;
+    public static final int opSoftCut = 37;
+    public static final int opPutStructure = 38;
+    public static final int opPutSegment = 39;
+    public static final int opDispatch = 40;
 
     public static final int callWrite = -10;
     public static final int callWriteLn = -11;
@@ -67,43 +83,36 @@ public class Wam {
     public static final int callIsBound = -21;
     public static final int callReadLn = -22;
     public static final int callCall = -23;
+    public static final int callLength = -24;
+    public static final int callNth = -25;
+    public static final int callLast = -26;
 
 
     /****************************** BEGIN SUBCLASSES ******************************/
 
     public class Variable {
-        public int tag;            // UNB, REF, CON, LIS or STR
-        public String value;       // variable's content in case of CON
+        public int tag;            // UNB, REF, CON, INT, FLT, BIG, LIS, STR or SEG
+        public int atom;           // variable's content in case of CON: the atom's number in the AtomTable;
+                                   // the functor of a STR, -1 if that is a variable (which head holds then)
+        public long number;        // variable's content in case of INT, the bits of the double in case of FLT;
+                                   // the index of a SEG's first element in its array;
+                                   // the choicepoint level of the cut and get_level instructions' variables
+        public BigInteger big;     // variable's content in case of BIG
         public Variable reference; // variable's content in case of REF
-        public String name;        // name of variable, e.g. when it's a query variable
-        public Variable head, tail;  // list/struc stuff
-        public ChoicePoint cutLevel;  // f�r the cut and get_level instructions
+        public Variable head, tail;  // list stuff, tail is also the rest of the list after a SEG
+        public Variable[] args;    // arguments in case of STR, elements in case of a SEG
+        public long[] integers;    // elements of a SEG of integers, which has no args
+        public final long stamp = clock;  // value of the WAM's clock when the variable was created
 
-        // constructor for creating a new, unbound variable without a name
+        // constructor for creating a new, unbound variable
         public Variable() {
             tag = REF;
             reference = this;
         }
 
-        // constructor for creating a new, unbound variable with a name
-        public Variable(String aName) {
-            tag = REF;
-            reference = this;
-            name = aName;
-        }
-
         // constructor for creating a new variable and binding it to a constant
-        public Variable(String aName, String s) {
-            tag = CON;
-            value = s;
-            name = aName;
-        }
-
-        // constructor for creating a new variable and unifying it with another
-        public Variable(String aName, Variable v) {
-            tag = REF;
-            reference = v;
-            name = aName;
+        public Variable(String s) {
+            setConstant(s);
         }
 
         // copyFrom-constructor
@@ -117,13 +126,137 @@ public class Wam {
             if (tag == REF)
                 reference = source.reference;
             else if (tag == CON)
-                value = source.value;
-            else {
+                atom = source.atom;
+            else if ((tag == INT) || (tag == FLT))
+                number = source.number;
+            else if (tag == BIG)
+                big = source.big;
+            else if (tag == STR) {
+                atom = source.atom;
+                args = source.args;
+                head = source.head;
+            } else if (tag == SEG) {
+                number = source.number;
+                args = source.args;
+                integers = source.integers;
+                tail = source.tail;
+            } else {
                 head = source.head;
                 tail = source.tail;
             }
         }
 
+        // binds this variable to the structure functor(args)
+        public void setStructure(int functor, Variable[] arguments) {
+            tag = STR;
+            atom = functor;
+            args = arguments;
+            head = null;
+        }
+
+        // binds this variable to the list of the given elements, followed by rest; elements may be
+        // shared with other segments, since they are never changed
+        public void setSegment(Variable[] elements, Variable rest) {
+            tag = SEG;
+            number = 0;
+            args = elements;
+            integers = null;
+            tail = rest;
+        }
+
+        // binds this variable to the list of the given integers, followed by rest
+        public void setSegment(long[] elements, Variable rest) {
+            tag = SEG;
+            number = 0;
+            args = null;
+            integers = elements;
+            tail = rest;
+        }
+
+        // returns the number of elements of a SEG
+        public int length() {
+            return ((args != null) ? args.length : integers.length) - (int) number;
+        }
+
+        // returns element i of a SEG, counting from 0
+        public Variable element(int i) {
+            int k = (int) number + i;
+            if (args != null)
+                return args[k];
+            Variable result = new Variable();
+            result.setInteger(integers[k]);
+            return result;
+        }
+
+        // returns the list following the first n elements of a SEG, which shares the SEG's array
+        public Variable rest(int n) {
+            if (n == length())
+                return tail;
+            Variable result = new Variable();
+            result.copyFrom(this);
+            result.number += n;
+            return result;
+        }
+
+        // returns the functor's atom if this variable is bound to a structure, -1 if the functor is unbound
+        public int functor() {
+            if (atom >= 0)
+                return atom;
+            Variable f = head.deref();
+            return (f.tag == CON) ? f.atom : -1;
+        }
+
+        // binds this variable to the constant s, which is either a number or an atom
+        public void setConstant(String s) {
+            switch (numberKind(s)) {
+                case INT:
+                    setInteger(Long.parseLong(s));
+                    break;
+                case BIG:
+                    setInteger(new BigInteger(s));
+                    break;
+                case FLT:
+                    setReal(Double.parseDouble(s));
+                    break;
+                default:
+                    tag = CON;
+                    atom = AtomTable.intern(s);
+            }
+        }
+
+        public void setInteger(long n) {
+            tag = INT;
+            number = n;
+        }
+
+        // binds this variable to n, as an INT if n fits into a long
+        public void setInteger(BigInteger n) {
+            if (n.bitLength() < 64) {
+                setInteger(n.longValue());
+            } else {
+                tag = BIG;
+                big = n;
+            }
+        }
+
+        public void setReal(double d) {
+            tag = FLT;
+            number = Double.doubleToLongBits(d);
+        }
+
+        // returns the constant this variable is bound to (CON, INT, FLT or BIG), null otherwise
+        public String value() {
+            if (tag == CON)
+                return AtomTable.name(atom);
+            if (tag == INT)
+                return Long.toString(number);
+            if (tag == FLT)
+                return Double.toString(Double.longBitsToDouble(number));
+            if (tag == BIG)
+                return big.toString();
+            return null;
+        }
+
         // dereferencing: if this variable points to another var, then return that dereferenced
         public Variable deref() {
             if ((tag == REF) && (reference != this)) {
@@ -137,109 +270,143 @@ public class Wam {
 
         // returns a string in the form NAME = VALUE, representing the variable's value
         public String toString() {
-            if ((tag == REF) && (reference == this))
-                return "_"; // "(unbound variable)";
-            if (tag == CON) {
-//        if (value.indexOf(' ') < 0) {
-                if ((value.length() > 2) && (value.indexOf(".0") == value.length() - 2))
-                    return value.substring(0, value.length() - 2);
-                else
-                    return value;
-//        }
-//        else
-//          return("'" + value + "'");
-            }
-            if (tag == LIS)
-                return "[" + toString2() + "]";
-            if (tag == STR) {
-                String result = head.toString() + "(" + tail.toString2() + ")";
-                return result;
-            }
-            if (tag == REF)
-                return deref().toString();
-            return "";
+            return print(this, false);
         }
 
+        // returns the elements of the list, separated by commas
         public String toString2() {
-            if (tag == LIS) {
-                String result = head.toString();
-                if ((tail != null) && (tail.tag != CON))
-                    result += ", " + tail.toString2();
-                return result;
-            }
-            return "";
+            return print(this, true);
         }
 
     }
 
-    // class ChoicePoint implements the choice point concept, as presented by Ait-Kaci
+    // class ChoicePoint implements the choice point concept, as presented by Ait-Kaci.
+    // ChoicePoints live in the choicePoints array and are reused once popped, so pushing one
+    // does not allocate anything after the stack has reached its working size
     class ChoicePoint {
-        public Vector arguments;             // the Ai variables
-        public Environment lastEnviron;      // current environment when creating the choicepoint
+        public Variable[] arguments;         // copies of the saved Ai variables
+        public int arity;                    // number of saved Ai variables
+        public int lastEnviron;              // current environment when creating the choicepoint
+        public int envTop;                   // top of the environment stack when creating the choicepoint
         public int returnAddress;            // current continuation pointer (cp)
-        public ChoicePoint lastCP;           // last ChoicePoint on stack
-        public ChoicePoint cutPoint;         // copy of B0
+        public int cutPoint;                 // copy of B0
         public int nextClause;               // current instruction pointer + 1
         public int trailPointer;             // current trail pointer
-
-        // constructor gets A (argument variables vector), trailPtr (trail pointer) and
-        // anAddress (current return address / continuation pointer)
-        public ChoicePoint(Vector a, int trailPtr, int anAddress) {
-            arguments = new Vector();
-            lastEnviron = null;
-            lastCP = null;
-            returnAddress = anAddress;
-            for (int i = 0; i < a.size(); i++)
-                arguments.addElement(new Variable((Variable) a.elementAt(i)));
-            trailPointer = trailPtr;
+        public long stamp;                   // clock value when creating the choicepoint, variables below it are trailed
+        public int[] alternatives;           // clause lines left to try if created by indexing, null otherwise
+        public int alternative;              // index of the next entry in alternatives
+        public Procedure procedure;          // dynamic procedure if created by dispatch, alternatives then holding clause numbers
+        public int alternativesEnd;          // number of entries of alternatives taken
+        public int generation;               // generation of the procedure's clauses the call sees
+
+        public ChoicePoint() {
+            arguments = new Variable[0];
+        }
+
+        // saves the contents of the first n argument registers of a
+        public void save(Variable[] a, int n) {
+            if (arguments.length < n) {
+                Variable[] newArguments = new Variable[n];
+                System.arraycopy(arguments, 0, newArguments, 0, arguments.length);
+                for (int i = arguments.length; i < n; i++)
+                    newArguments[i] = new Variable();
+                arguments = newArguments;
+            }
+            for (int i = 0; i < n; i++)
+                arguments[i].copyFrom(a[i]);
+            arity = n;
+        }
+
+        // copies the saved argument registers back into a
+        public void restore(Variable[] a) {
+            for (int i = 0; i < arity; i++)
+                a[i].copyFrom(arguments[i]);
+        }
+
+        // drops the references to terms and clause lists, so that a popped choicepoint does not keep
+        // them alive until it is reused
+        public void release() {
+            for (int i = 0; i < arity; i++) {
+                Variable v = arguments[i];
+                v.tag = REF;
+                v.reference = v;
+                v.head = null;
+                v.tail = null;
+                v.args = null;
+                v.integers = null;
+                v.big = null;
+            }
+            arity = 0;
+            alternatives = null;
+            procedure = null;
         }
 
     }
 
-    // class Environment for storing local variables that must not be overridden
-    class Environment {
-        public Vector variables;
-        public Environment lastEnviron;
-        public int returnAddress;
+    // an AssertEntry is put on the trail by assert, so that backtracking retracts the clause again
+    class AssertEntry extends Variable {
+        public final Procedure procedure;  // the procedure of the asserted clause
+        public final int clause;           // the number of the asserted clause
 
-        // constructor gets the current return address (continuation pointer) and a pointer to the previous environment on stack
-        public Environment(int anAddress, Environment anEnv) {
-            lastEnviron = anEnv;
-            returnAddress = anAddress;
-            variables = new Vector();
+        public AssertEntry(Procedure aProcedure, int aClause) {
+            tag = ASSERT;
+            procedure = aProcedure;
+            clause = aClause;
         }
 
     }
 
     // Trail implements the WAM's trail (undo-list for bindings performed)
     class Trail {
-        private final Vector contents;
+        private Variable[] contents;
+        private int length;
 
         public Trail() {
-            contents = new Vector();
+            contents = new Variable[256];
+            length = 0;
         }
 
         public int getLength() {
-            return contents.size();
+            return length;
         }
 
+        // shrinks the trail to length entries, dropping the references held by the others
         public void setLength(int length) {
-            contents.setSize(length);
+            for (int i = length; i < this.length; i++)
+                contents[i] = null;
+            this.length = length;
         }
 
         public void addEntry(Variable v) {
-            contents.addElement(v);
+            if (length == contents.length) {
+                Variable[] newContents = new Variable[length * 2];
+                System.arraycopy(contents, 0, newContents, 0, length);
+                contents = newContents;
+            }
+            contents[length++] = v;
         }
 
         public Variable getEntry(int index) {
-            return (Variable) contents.elementAt(index);
+            return contents[index];
+        }
+
+        // tidy drops the entries from index from on whose variables are not older than hb, since no
+        // remaining choicepoint needs them undone; asserts always stay, the order of the rest is kept
+        public void tidy(int from, long hb) {
+            int kept = from;
+            for (int i = from; i < length; i++) {
+                Variable v = contents[i];
+                if ((v != null) && ((v.tag == ASSERT) || (v.stamp < hb)))
+                    contents[kept++] = v;
+            }
+            setLength(kept);
         }
 
         public void undo(int index) {
-            Variable v = (Variable) contents.elementAt(index);
+            Variable v = contents[index];
             if (v != null) {
                 if (v.tag == ASSERT)
-                    retract(v.value);
+                    p.retract(((AssertEntry) v).procedure, ((AssertEntry) v).clause);
                 else {
                     v.tag = REF;
                     v.reference = v;
@@ -255,23 +422,45 @@ public class Wam {
     public int debugOn = 0;   // display debug information?
     private int benchmarkOn = 0;   // show benchmark information?
     private int maxOpCount = 50000000;  // artificial stack overflow limit
+    private String cacheDirectory = System.getProperty("jwam.cache", "");  // directory of the CodeCache, "" for none
 
     public int opCount, backtrackCount;
 
+    // an environment starting at index e of the environment stack keeps its header in envFrames[e - ENV_HEADER .. e - 1]
+    private static final int NIL = AtomTable.intern("[]");  // atom of the empty list
+    private static final int ENV_HEADER = 3;
+    private static final int ENV_PREVIOUS = -3;  // index of the previous environment
+    private static final int ENV_RETURN = -2;    // return address (continuation pointer)
+    private static final int ENV_SIZE = -1;      // number of permanent variables
+
     private Program p;         // the program(s) loaded into memory
+    private String[] constants; // constant pool of the decoded program currently being run
+    private Variable[] constantCells;  // the constants of the pool as (never bound) constant variables
+    private int constantCount;  // number of entries of constantCells in use
+    private Variable[] segments = new Variable[0];  // ground segments of put_segment, by argument list
+    private Variable leftCell, rightCell, resultCell;  // scratch cells for the operands and the result of is
+    private int[] evalTags = new int[16];        // evaluation stack of arithmetic expressions: INT, FLT or BIG,
+    private long[] evalNumbers = new long[16];   // the number (or the bits of the double)
+    private BigInteger[] evalBigs = new BigInteger[16];  // and the BigInteger in case of BIG
     private Trail trail;       // undo-list (WAM trail)
+    private Variable[] pdl = new Variable[64];  // push-down list of the pairs of terms still to be unified
+    private long clock;        // age stamp for new variables, advanced by every choicepoint (a long, so it never wraps)
     private boolean failed;    // set to true upon an unsuccessful binding operation
     boolean[] displayQValue = new boolean[100];   // which Query-Variables do have to displayed upon success?
+    String[] displayQName = new String[100];      // and their names
     int displayQCount = 0;     // how many of them?
 
     // the WAM's register set
     private Vector queryVariables; // query variables, to be accessed by Q1, Q2, and so on
     private int programCounter = 0; // program counter
     private int continuationPointer = 0; // continuation pointer
-    private ChoicePoint choicePoint = null; // last choicepoint on stack
-    private ChoicePoint cutPoint = null; // current choicepoint for cut instruction
-    private Environment env = null; // last environment on stack
-    private Vector arguments;      // argument registers
+    private ChoicePoint[] choicePoints; // choicepoint stack
+    private int choicePoint = 0;   // number of choicepoints on stack, the last one is choicePoints[choicePoint - 1]
+    private int cutPoint = 0;      // current choicepoint for cut instruction
+    private int env;               // last environment on stack, i.e. the index of its first permanent variable
+    private Variable[] envStack;   // environment stack, holding the permanent variables (Yi) of all environments
+    private int[] envFrames;       // environment headers, stored right in front of each environment's variables
+    private Variable[] arguments;  // argument registers
 
     // in case we want to use the WAM inside our GUI
     public TextArea response = null;   // this is the memo box all the output is written into
@@ -286,18 +475,40 @@ public class Wam {
 
     // resets sets all WAM parameters to their initial values
     private void reset() {
-        arguments = new Vector();  // no argument registers so far
-        arguments.addElement(new Variable());
-        env = new Environment(999999999, null);  // empty environment
+        arguments = new Variable[0];  // no argument registers so far
+        growArguments(1);
+        envStack = new Variable[1024];  // empty environment
+        envFrames = new int[envStack.length];
+        env = ENV_HEADER;
+        envFrames[env + ENV_PREVIOUS] = -1;
+        envFrames[env + ENV_RETURN] = 999999999;
+        envFrames[env + ENV_SIZE] = 0;
         continuationPointer = -1;  // no continuation point
         trail = new Trail();
+        leftCell = new Variable();
+        rightCell = new Variable();
+        resultCell = new Variable();
+        clock = 0;
         queryVariables = new Vector();
         displayQCount = 0;
         for (int i = 0; i < 100; i++) {
             displayQValue[i] = false;
         }
-        choicePoint = null;
-        cutPoint = null;
+        choicePoints = new ChoicePoint[16];
+        choicePoint = 0;
+        cutPoint = 0;
+    }
+
+    // makes sure that there are at least n argument registers
+    private void growArguments(int n) {
+        if (arguments.length < n) {
+            Variable[] newArguments = new Variable[Math.max(n, arguments.length * 2)];
+            System.arraycopy(arguments, 0, newArguments, 0, arguments.length);
+            for (int i = arguments.length; i < newArguments.length; i++) {
+                newArguments[i] = new Variable();
+            }
+            arguments = newArguments;
+        }
     }
 
     // reads a String line from standard input
@@ -359,6 +570,12 @@ public class Wam {
         getInternalVariable("autostop");
         getInternalVariable("benchmark");
         getInternalVariable("debug");
+        getInternalVariable("cache");
+    }
+
+    // returns the directory consulted files are cached in (see CodeCache), "" if they are not
+    public String getCacheDirectory() {
+        return cacheDirectory;
     }
 
     // sets the internal parameter specified by variable to a new value
@@ -373,6 +590,9 @@ public class Wam {
             if (variable.compareToIgnoreCase("debug") == 0) {
                 debugOn = parseInt(value);
             }
+            if (variable.compareToIgnoreCase("cache") == 0) {
+                cacheDirectory = value;
+            }
             getInternalVariable(variable);
         } catch (Exception e) {
             writeLn("An error occurred. Illegal query.");
@@ -387,11 +607,82 @@ public class Wam {
             writeLn("Internal variable BENCHMARK = " + benchmarkOn);
         } else if (variable.compareToIgnoreCase("debug") == 0) {
             writeLn("Internal variable DEBUG = " + debugOn);
+        } else if (variable.compareToIgnoreCase("cache") == 0) {
+            writeLn("Internal variable CACHE = " + cacheDirectory);
         } else {
             writeLn("Unknown internal variable.");
         }
     }
 
+    // numberKind tells whether the constant s is written as a number: INT for integers fitting into
+    // a long, e.g. "42" or "-7", BIG for larger integers, FLT for "3.14" or "1.0e-5" and CON otherwise
+    static int numberKind(String s) {
+        int len = s.length();
+        int i = s.startsWith("-") ? 1 : 0;
+        int digits = skipDigits(s, i);
+        if (digits == i) {
+            return CON;
+        }
+        if (digits == len) {
+            if (digits - i < 19) {
+                return INT;
+            }
+            return (new BigInteger(s).bitLength() < 64) ? INT : BIG;
+        }
+        if ((s.charAt(digits) != '.') || ((i = skipDigits(s, digits + 1)) == digits + 1)) {
+            return CON;
+        }
+        if ((i < len) && ((s.charAt(i) == 'e') || (s.charAt(i) == 'E'))) {
+            i++;
+            if ((i < len) && ((s.charAt(i) == '+') || (s.charAt(i) == '-'))) {
+                i++;
+            }
+            int exponent = i;
+            if ((i = skipDigits(s, i)) == exponent) {
+                return CON;
+            }
+        }
+        return (i == len) ? FLT : CON;
+    }
+
+    private static int skipDigits(String s, int i) {
+        while ((i < s.length()) && (s.charAt(i) >= '0') && (s.charAt(i) <= '9')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isList(Variable v) {
+        return (v.tag == LIS) || (v.tag == SEG);
+    }
+
+    // returns true if v is the empty list
+    private static boolean isNil(Variable v) {
+        return (v.tag == CON) && (v.atom == NIL);
+    }
+
+    private static boolean isConstant(Variable v) {
+        return (v.tag == CON) || isNumber(v);
+    }
+
+    private static boolean isNumber(Variable v) {
+        return (v.tag == INT) || (v.tag == FLT) || (v.tag == BIG);
+    }
+
+    // constants are equal if they are the same atom or the same number
+    private static boolean sameConstant(Variable a, Variable b) {
+        if (a.tag != b.tag) {
+            return false;
+        }
+        if (a.tag == CON) {
+            return a.atom == b.atom;
+        }
+        if (a.tag == BIG) {
+            return a.big.equals(b.big);
+        }
+        return ((a.tag == INT) || (a.tag == FLT)) && (a.number == b.number);
+    }
+
     private int parseInt(String number) throws NumberFormatException {
         int len = number.length();
         int cnt = -1;
@@ -407,33 +698,26 @@ public class Wam {
         return value;
     }
 
-    // returns the Variable pointer belonging to a string, e.g. "A3", "Y25"
-    private Variable get_ref(String name) {
-        Vector array;
-        switch (name.charAt(0)) {
-            case 'Y':
-                array = env.variables;
-                break;
-            case 'A':
-                array = arguments;
-                break;
-            case 'Q':
-                array = queryVariables;
-                break;
+    // returns the Variable pointer belonging to a decoded register operand, e.g. "A3", "Y25"
+    private Variable get_ref(int operand) {
+        int index = operand >> Program.KIND_BITS;
+        switch (operand & Program.KIND_MASK) {
+            case Program.KIND_Y:
+                return envStack[env + index];
+            case Program.KIND_A:
+                if (index >= arguments.length) {
+                    growArguments(index + 1);
+                }
+                return arguments[index];
+            case Program.KIND_Q:
+                int cnt = queryVariables.size();
+                while (cnt++ < index + 1) {
+                    queryVariables.addElement(new Variable());
+                }
+                return (Variable) queryVariables.elementAt(index);
             default:
                 return null;
         }
-        int len = name.length();
-        int cnt = 0;
-        int index = 0;
-        while (++cnt < len) {
-            index = index * 10 + (name.charAt(cnt) - '0');
-        }
-        cnt = array.size();
-        while (cnt++ < index + 1) {
-            array.addElement(new Variable());
-        }
-        return (Variable) array.elementAt(index);
     }
 
     /******************** BEGIN WAM CODE OPERATIONS ********************/
@@ -441,12 +725,13 @@ public class Wam {
     // WAM code operations are described in Ait Kaci: Warren's Abstract Machine -- A Tutorial Reconstruction
 
     // gives a name to a variable; usually used on Qxx variables that occur within the query
-    private void create_variable(String v, String name) {
+    private void create_variable(int v, String name) {
+        // create the variable right here, before any choicepoint, so that its bindings get trailed
+        get_ref(v);
         if (name.compareTo("_") != 0) {  // keep "_" from being displayed as solution
-            Variable q = get_ref(v);
-            q.name = name;
             // update displayQ-stuff
-            int i = parseInt(v.substring(1));
+            int i = v >> Program.KIND_BITS;
+            displayQName[i] = name;
             if (!displayQValue[i]) {
                 displayQCount++;
                 displayQValue[i] = true;
@@ -456,16 +741,16 @@ public class Wam {
     }
 
     // comparison manages "<", "<=", ">=", ">" and "!="
-    private void comparison(String s1, String s2, int comparator) {
+    private void comparison(int s1, int s2, int comparator) {
         // comparator values: 1 = "<", 2 = "<=", 3 = ">=", 4 = ">", 5 = "!="
-        Variable v1 = get_ref(s1).deref();
-        Variable v2 = get_ref(s2).deref();
-        if ((v1.tag == CON) && (v2.tag == CON)) {
+        Variable v1 = operand(s1, leftCell);
+        Variable v2 = operand(s2, rightCell);
+        if ((v1 != null) && (v2 != null) && isConstant(v1) && isConstant(v2)) {
             int compareValue;
-            try {
-                compareValue = parseInt(v1.value) - parseInt(v2.value);
-            } catch (Exception e) {
-                compareValue = v1.value.compareTo(v2.value);
+            if (isNumber(v1) && isNumber(v2)) {
+                compareValue = compareNumbers(v1, v2);
+            } else {
+                compareValue = v1.value().compareTo(v2.value());
             }
             switch (comparator) {
                 case 1:
@@ -495,113 +780,457 @@ public class Wam {
             backtrack();
     }
 
-    private void smaller(String s1, String s2) {
+    private void smaller(int s1, int s2) {
         comparison(s1, s2, 1);
     }
 
-    private void smallereq(String s1, String s2) {
+    private void smallereq(int s1, int s2) {
         comparison(s1, s2, 2);
     }
 
-    private void biggereq(String s1, String s2) {
+    private void biggereq(int s1, int s2) {
         comparison(s1, s2, 3);
     }
 
-    private void bigger(String s1, String s2) {
+    private void bigger(int s1, int s2) {
         comparison(s1, s2, 4);
     }
 
-    private void unequal(String s1, String s2) {
+    private void unequal(int s1, int s2) {
         comparison(s1, s2, 5);
     }
 
-    // is manages integer arithmetic (floating point may be added later)
-    private void is(String target, char op, String s1, String s2) {
-        Variable v1, v2, v3;
-        int z1, z2, z3;
-        // convert s1 or the value of the variable referenced by s1 to int value
-        try {
-            z1 = parseInt(s1);
-        } catch (Exception e) {
-            v1 = get_ref(s1).deref();
-            if (v1.tag != CON) {
-                backtrack();
-                return;
-            }
-            try {
-                z1 = parseInt(v1.value);
-            } catch (Exception e2) {
-                backtrack();
-                return;
-            }
+    // compareNumbers compares two numbers by their values
+    private static int compareNumbers(Variable x, Variable y) {
+        if ((x.tag == INT) && (y.tag == INT))
+            return (x.number < y.number) ? -1 : ((x.number == y.number) ? 0 : 1);
+        if ((x.tag == FLT) || (y.tag == FLT))
+            return Double.compare(doubleValue(x), doubleValue(y));
+        return bigValue(x).compareTo(bigValue(y));
+    }
+
+    private static double doubleValue(Variable v) {
+        if (v.tag == FLT)
+            return Double.longBitsToDouble(v.number);
+        if (v.tag == BIG)
+            return v.big.doubleValue();
+        return (double) v.number;
+    }
+
+    private static BigInteger bigValue(Variable v) {
+        return (v.tag == BIG) ? v.big : BigInteger.valueOf(v.number);
+    }
+
+    // is binds target to the value of its operand, an arithmetic expression or a single number
+    private void is(int target, int expression) {
+        Variable v1 = operand(expression, resultCell);
+        if ((v1 == null) || (!isNumber(v1))) {
+            backtrack();
+            return;
         }
-        // convert s2 or the value of the variable referenced by s2 to int value
-        try {
-            z2 = parseInt(s2);
-        } catch (Exception e) {
-            v2 = get_ref(s2).deref();
-            if (v2.tag != CON) {
-                backtrack();
-                return;
-            }
-            try {
-                z2 = parseInt(v2.value);
-            } catch (Exception e2) {
-                backtrack();
-                return;
+        // check which variable is referenced by target
+        Variable v3 = get_ref(target).deref();
+        // if v3 (the target) has already been bound, consider this an equality check
+        // if ((v3.tag == INT) && (v3.number != z3))      // do not allow this for now, since problems might occur
+        // backtrack();
+        if (v3.tag == REF) {
+            // if it has not been bound yet, bind it to the result
+            bind(v3);
+            v3.copyFrom(v1);
+            programCounter++;
+        }
+        // only when alle stricke reissen: backtrack!
+        else
+            backtrack();
+    }
+
+    // operand returns the term an operand of is or of a comparison stands for: the contents of a
+    // register or a constant, or an immediate integer or the value of an expression, which are put
+    // into scratch. Returns null if the expression cannot be evaluated
+    private Variable operand(int operand, Variable scratch) {
+        switch (operand & Program.KIND_MASK) {
+            case Program.KIND_INT:
+                scratch.setInteger(operand >> Program.KIND_BITS);
+                return scratch;
+            case Program.KIND_CONST:
+                return constantCells[operand >> Program.KIND_BITS];
+            case Program.KIND_EXPR:
+                if (!evaluate(p.getExpression(operand >> Program.KIND_BITS)))
+                    return null;
+                scratch.tag = evalTags[0];
+                scratch.number = evalNumbers[0];
+                scratch.big = evalBigs[0];
+                return scratch;
+            default:
+                Variable v = get_ref(operand);
+                return (v == null) ? null : v.deref();
+        }
+    }
+
+    // evaluate runs an expression decoded by Program.expression on the evaluation stack, leaving its
+    // value in the first entry; it returns false if an operand is no number or a function is undefined
+    // for its arguments (e.g. division by zero)
+    private boolean evaluate(int[] expression) {
+        if (evalTags.length < expression[0]) {
+            int size = Math.max(expression[0], evalTags.length * 2);
+            evalTags = new int[size];
+            evalNumbers = new long[size];
+            evalBigs = new BigInteger[size];
+        }
+        int top = 0;
+        for (int i = 1; i < expression.length; i++) {
+            int word = expression[i];
+            if ((word & Program.KIND_MASK) == Program.KIND_OP) {
+                int function = word >> Program.KIND_BITS;
+                top -= Arithmetic.arity(function);
+                if (!apply(function, top))
+                    return false;
+            } else if ((word & Program.KIND_MASK) == Program.KIND_INT) {
+                setInteger(top, word >> Program.KIND_BITS);
+            } else {
+                Variable v;
+                if ((word & Program.KIND_MASK) == Program.KIND_CONST) {
+                    v = constantCells[word >> Program.KIND_BITS];
+                } else if ((v = get_ref(word)) != null) {
+                    v = v.deref();
+                }
+                if ((v == null) || (!isNumber(v)))
+                    return false;
+                evalTags[top] = v.tag;
+                evalNumbers[top] = v.number;
+                evalBigs[top] = v.big;
             }
+            top++;
         }
-        // check which variable is referenced by target
-        v3 = get_ref(target).deref();
-        try {
-            z3 = 0;
-            // do the arithmetic
-            if (op == '+') z3 = z1 + z2;
-            if (op == '-') z3 = z1 - z2;
-            if (op == '*') z3 = z1 * z2;
-            if (op == '/') z3 = z1 / z2;
-            if (op == '%') z3 = z1 % z2;
-            // if v3 (the target) has already been bound, consider this an equality check
-            // if ((v3.tag == CON) && (parseInt(v3.value) != z3))      // do not allow this for now, since problems might occur
-            // backtrack();
-            if (v3.tag == REF) {
-                // if it has not been bound yet, bind it to constant value z3 (the integer number)
-                trail.addEntry(v3);
-                v3.tag = CON;
-                v3.value = "" + z3;
-                programCounter++;
+        return true;
+    }
+
+    // apply replaces the arguments of function, starting at stack entry a, by its result
+    private boolean apply(int function, int a) {
+        switch (Arithmetic.arity(function)) {
+            case 0:
+                return setReal(a, (function == Arithmetic.PI) ? Math.PI : Math.E);
+            case 1:
+                return unary(function, a);
+            default:
+                return binary(function, a, a + 1);
+        }
+    }
+
+    private boolean unary(int function, int a) {
+        int tag = evalTags[a];
+        long n = evalNumbers[a];
+        switch (function) {
+            case Arithmetic.NEGATE:
+                if (tag == FLT)
+                    return setReal(a, -realAt(a));
+                if ((tag == INT) && (n != Long.MIN_VALUE))
+                    return setInteger(a, -n);
+                return setInteger(a, bigAt(a).negate());
+            case Arithmetic.ABS:
+                if (tag == FLT)
+                    return setReal(a, Math.abs(realAt(a)));
+                if ((tag == INT) && (n != Long.MIN_VALUE))
+                    return setInteger(a, Math.abs(n));
+                return setInteger(a, bigAt(a).abs());
+            case Arithmetic.SIGN:
+                if (tag == FLT)
+                    return setReal(a, Math.signum(realAt(a)));
+                return setInteger(a, (tag == INT) ? Long.signum(n) : bigAt(a).signum());
+            case Arithmetic.NOT:
+                if (tag == FLT)
+                    return false;
+                return (tag == INT) ? setInteger(a, ~n) : setInteger(a, bigAt(a).not());
+            case Arithmetic.FLOAT:
+                return setReal(a, realAt(a));
+            case Arithmetic.INTEGER:
+            case Arithmetic.ROUND:
+            case Arithmetic.TRUNCATE:
+            case Arithmetic.CEILING:
+            case Arithmetic.FLOOR:
+                return (tag != FLT) || setIntegral(a, integralPart(function, realAt(a)));
+            case Arithmetic.FLOAT_INTEGER_PART:
+                return setReal(a, integralPart(Arithmetic.TRUNCATE, realAt(a)));
+            case Arithmetic.FLOAT_FRACTIONAL_PART:
+                return setReal(a, realAt(a) - integralPart(Arithmetic.TRUNCATE, realAt(a)));
+        }
+        double x = realAt(a), r;
+        switch (function) {
+            case Arithmetic.SQRT:
+                r = Math.sqrt(x);
+                break;
+            case Arithmetic.SIN:
+                r = Math.sin(x);
+                break;
+            case Arithmetic.COS:
+                r = Math.cos(x);
+                break;
+            case Arithmetic.TAN:
+                r = Math.tan(x);
+                break;
+            case Arithmetic.ASIN:
+                r = Math.asin(x);
+                break;
+            case Arithmetic.ACOS:
+                r = Math.acos(x);
+                break;
+            case Arithmetic.ATAN:
+                r = Math.atan(x);
+                break;
+            case Arithmetic.EXP:
+                r = Math.exp(x);
+                break;
+            case Arithmetic.LOG:
+                r = Math.log(x);
+                break;
+            default:
+                return false;
+        }
+        // e.g. the square root of a negative number is undefined
+        return (!Double.isNaN(r)) && setReal(a, r);
+    }
+
+    // integralPart rounds x as the function (TRUNCATE, ROUND, INTEGER, CEILING or FLOOR) demands
+    private static double integralPart(int function, double x) {
+        switch (function) {
+            case Arithmetic.CEILING:
+                return Math.ceil(x);
+            case Arithmetic.FLOOR:
+                return Math.floor(x);
+            case Arithmetic.TRUNCATE:
+                return (x < 0) ? Math.ceil(x) : Math.floor(x);
+            default:
+                // round half away from zero
+                double r = Math.floor(Math.abs(x));
+                if (Math.abs(x) - r >= 0.5)
+                    r += 1.0;
+                return (x < 0) ? -r : r;
+        }
+    }
+
+    private boolean binary(int function, int a, int b) {
+        if ((function == Arithmetic.MIN) || (function == Arithmetic.MAX)) {
+            // the result keeps the type of the chosen argument
+            int c = compareAt(a, b);
+            if ((function == Arithmetic.MIN) ? (c > 0) : (c < 0)) {
+                evalTags[a] = evalTags[b];
+                evalNumbers[a] = evalNumbers[b];
+                evalBigs[a] = evalBigs[b];
             }
-            // only when alle stricke reissen: backtrack!
-            else
-                backtrack();
-        } catch (Exception e) {
-            backtrack();
+            return true;
+        }
+        if ((evalTags[a] == FLT) || (evalTags[b] == FLT) || (function == Arithmetic.ATAN2))
+            return realBinary(function, a, realAt(a), realAt(b));
+        if ((evalTags[a] == INT) && (evalTags[b] == INT) && (longBinary(function, a, evalNumbers[a], evalNumbers[b])))
+            return true;
+        // the result does not fit into a long (or the operation failed), so compute it as a BigInteger
+        return bigBinary(function, a, bigAt(a), bigAt(b));
+    }
+
+    private boolean realBinary(int function, int a, double x, double y) {
+        switch (function) {
+            case Arithmetic.ADD:
+                return setReal(a, x + y);
+            case Arithmetic.SUBTRACT:
+                return setReal(a, x - y);
+            case Arithmetic.MULTIPLY:
+                return setReal(a, x * y);
+            case Arithmetic.DIVIDE:
+                return (y != 0.0) && setReal(a, x / y);
+            case Arithmetic.REM:
+                return (y != 0.0) && setReal(a, x % y);
+            case Arithmetic.POWER:
+                return setReal(a, Math.pow(x, y));
+            case Arithmetic.ATAN2:
+                return setReal(a, Math.atan2(x, y));
+            default:
+                return false;
+        }
+    }
+
+    // longBinary computes x op y unless the result does not fit into a long or the operation is undefined
+    private boolean longBinary(int function, int a, long x, long y) {
+        long r;
+        switch (function) {
+            case Arithmetic.ADD:
+                r = x + y;
+                return (((x ^ r) & (y ^ r)) >= 0) && setInteger(a, r);
+            case Arithmetic.SUBTRACT:
+                r = x - y;
+                return (((x ^ y) & (x ^ r)) >= 0) && setInteger(a, r);
+            case Arithmetic.MULTIPLY:
+                r = x * y;
+                return ((x == 0) || ((r / x == y) && ((x != -1) || (y != Long.MIN_VALUE)))) && setInteger(a, r);
+            case Arithmetic.DIVIDE:
+            case Arithmetic.INT_DIVIDE:
+                return (y != 0) && ((x != Long.MIN_VALUE) || (y != -1)) && setInteger(a, x / y);
+            case Arithmetic.REM:
+                return (y != 0) && setInteger(a, (y == -1) ? 0 : x % y);
+            case Arithmetic.MOD:
+                if (y == 0)
+                    return false;
+                r = (y == -1) ? 0 : x % y;
+                if ((r != 0) && ((r ^ y) < 0))
+                    r += y;
+                return setInteger(a, r);
+            case Arithmetic.POWER:
+                if ((y < 0) || (y > 62))
+                    return false;
+                r = 1;
+                for (long i = 0; i < y; i++) {
+                    long p = r * x;
+                    if ((r != 0) && ((p / r != x) || ((r == -1) && (x == Long.MIN_VALUE))))
+                        return false;
+                    r = p;
+                }
+                return setInteger(a, r);
+            case Arithmetic.SHIFT_LEFT:
+                return (y >= 0) && (y < 63) && (((x << y) >> y) == x) && setInteger(a, x << y);
+            case Arithmetic.SHIFT_RIGHT:
+                return (y >= 0) && setInteger(a, x >> Math.min(y, 63));
+            case Arithmetic.AND:
+                return setInteger(a, x & y);
+            case Arithmetic.OR:
+                return setInteger(a, x | y);
+            case Arithmetic.XOR:
+                return setInteger(a, x ^ y);
+            case Arithmetic.GCD:
+                if ((x == Long.MIN_VALUE) || (y == Long.MIN_VALUE))
+                    return false;
+                x = Math.abs(x);
+                y = Math.abs(y);
+                while (y != 0) {
+                    r = x % y;
+                    x = y;
+                    y = r;
+                }
+                return setInteger(a, x);
+            default:
+                return false;
+        }
+    }
+
+    private boolean bigBinary(int function, int a, BigInteger x, BigInteger y) {
+        switch (function) {
+            case Arithmetic.ADD:
+                return setInteger(a, x.add(y));
+            case Arithmetic.SUBTRACT:
+                return setInteger(a, x.subtract(y));
+            case Arithmetic.MULTIPLY:
+                return setInteger(a, x.multiply(y));
+            case Arithmetic.DIVIDE:
+            case Arithmetic.INT_DIVIDE:
+                return (y.signum() != 0) && setInteger(a, x.divide(y));
+            case Arithmetic.REM:
+                return (y.signum() != 0) && setInteger(a, x.remainder(y));
+            case Arithmetic.MOD:
+                if (y.signum() == 0)
+                    return false;
+                BigInteger r = x.remainder(y);
+                return setInteger(a, ((r.signum() != 0) && (r.signum() != y.signum())) ? r.add(y) : r);
+            case Arithmetic.POWER:
+                if (y.signum() < 0) {
+                    // only 1 and -1 have integral negative powers
+                    if (x.abs().equals(BigInteger.ONE))
+                        return setInteger(a, y.testBit(0) ? x : BigInteger.ONE);
+                    return false;
+                }
+                return (y.bitLength() < 32) && setInteger(a, x.pow(y.intValue()));
+            case Arithmetic.SHIFT_LEFT:
+                return (y.bitLength() < 32) && setInteger(a, x.shiftLeft(y.intValue()));
+            case Arithmetic.SHIFT_RIGHT:
+                return (y.bitLength() < 32) && setInteger(a, x.shiftRight(y.intValue()));
+            case Arithmetic.AND:
+                return setInteger(a, x.and(y));
+            case Arithmetic.OR:
+                return setInteger(a, x.or(y));
+            case Arithmetic.XOR:
+                return setInteger(a, x.xor(y));
+            case Arithmetic.GCD:
+                return setInteger(a, x.gcd(y));
+            default:
+                return false;
         }
     }
 
-    private void get_variable(String s1, String s2) {
+    private boolean setInteger(int i, long n) {
+        evalTags[i] = INT;
+        evalNumbers[i] = n;
+        return true;
+    }
+
+    // setInteger stores n into stack entry i, as an INT if it fits into a long
+    private boolean setInteger(int i, BigInteger n) {
+        if (n.bitLength() < 64)
+            return setInteger(i, n.longValue());
+        evalTags[i] = BIG;
+        evalBigs[i] = n;
+        return true;
+    }
+
+    private boolean setReal(int i, double d) {
+        evalTags[i] = FLT;
+        evalNumbers[i] = Double.doubleToLongBits(d);
+        return true;
+    }
+
+    // setIntegral stores the integral double d into stack entry i as an integer
+    private boolean setIntegral(int i, double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d))
+            return false;
+        if ((d >= -9.223372036854775808E18) && (d < 9.223372036854775808E18))
+            return setInteger(i, (long) d);
+        return setInteger(i, new BigDecimal(d).toBigInteger());
+    }
+
+    private double realAt(int i) {
+        if (evalTags[i] == FLT)
+            return Double.longBitsToDouble(evalNumbers[i]);
+        if (evalTags[i] == BIG)
+            return evalBigs[i].doubleValue();
+        return (double) evalNumbers[i];
+    }
+
+    private BigInteger bigAt(int i) {
+        return (evalTags[i] == BIG) ? evalBigs[i] : BigInteger.valueOf(evalNumbers[i]);
+    }
+
+    private int compareAt(int a, int b) {
+        if ((evalTags[a] == INT) && (evalTags[b] == INT))
+            return (evalNumbers[a] < evalNumbers[b]) ? -1 : ((evalNumbers[a] == evalNumbers[b]) ? 0 : 1);
+        if ((evalTags[a] == FLT) || (evalTags[b] == FLT))
+            return Double.compare(realAt(a), realAt(b));
+        return bigAt(a).compareTo(bigAt(b));
+    }
+
+    // bind records v on the trail before it gets bound, unless v was created after the last choicepoint
+    // (or the WAM's start, if there is none): such a variable is unreachable after backtracking anyway
+    private void bind(Variable v) {
+        long hb = (choicePoint > 0) ? choicePoints[choicePoint - 1].stamp : 0;
+        if (v.stamp < hb)
+            trail.addEntry(v);
+    }
+
+    private void get_variable(int s1, int s2) {
         Variable Vn = get_ref(s1);
         Variable Ai = get_ref(s2);
         Vn.copyFrom(Ai);
         programCounter++;
     }
 
-    private void get_value(String s1, String s2) {
+    private void get_value(int s1, int s2) {
         unify_variable(s2, s1);
     }
 
-    private void get_constant(String c, String variable) {
+    private void get_constant(Variable c, int variable) {
         Variable v = get_ref(variable).deref();
         boolean fail = true;
         if (v.tag == REF) {
-            trail.addEntry(v);
-            v.tag = CON;
-            v.value = c;
+            bind(v);
+            v.copyFrom(c);
             fail = false;
-        } else if (v.tag == CON) {
-            if (c.compareTo(v.value) == 0) {
-                fail = false;
-            }
+        } else {
+            fail = !sameConstant(v, c);
         }
         if (fail)
             backtrack();
@@ -609,36 +1238,252 @@ public class Wam {
             programCounter++;
     }
 
+    // unify_variable2 unifies v1 and v2, working off the pairs of list and structure components on
+    // the pdl instead of recursing, so that long lists and deep terms do not overflow the Java stack
     private boolean unify_variable2(Variable v1, Variable v2) {
-        if ((v1 == null) || (v2 == null)) {
-            return false;
-        }
-        v1 = v1.deref();
-        v2 = v2.deref();
-        if (v1 == v2) {
-            return true;
+        int top = 0;
+        while (true) {
+            if ((v1 == null) || (v2 == null)) {
+                clearPdl(top);
+                return false;
+            }
+            v1 = v1.deref();
+            v2 = v2.deref();
+            if (v1 != v2) {
+                if (v1.tag == REF) {
+                    bind(v1);
+                    v1.copyFrom(v2);
+                } else if (v2.tag == REF) {
+                    bind(v2);
+                    v2.copyFrom(v1);
+                } else if (isConstant(v1)) {
+                    if (!sameConstant(v1, v2)) {
+                        clearPdl(top);
+                        return false;
+                    }
+                } else if ((v1.tag == LIS) && (v2.tag == LIS)) {
+                    // heads first, the tails wait on the pdl
+                    growPdl(top + 2);
+                    pdl[top++] = v1.tail;
+                    pdl[top++] = v2.tail;
+                    v1 = v1.head;
+                    v2 = v2.head;
+                    continue;
+                } else if (isList(v1) && isList(v2)) {
+                    // at least one packed segment: compare as many elements as both have in one go
+                    if (top + 2 > pdl.length)
+                        growPdl(top + 2);
+                    if ((v1.tag == SEG) && (v2.tag == SEG)) {
+                        int n = Math.min(v1.length(), v2.length());
+                        if ((v1.integers != null) && (v2.integers != null)) {
+                            long[] integers1 = v1.integers;
+                            long[] integers2 = v2.integers;
+                            int k1 = (int) v1.number;
+                            int k2 = (int) v2.number;
+                            for (int i = 0; i < n; i++) {
+                                if (integers1[k1 + i] != integers2[k2 + i]) {
+                                    clearPdl(top);
+                                    return false;
+                                }
+                            }
+                            v1 = v1.rest(n);
+                            v2 = v2.rest(n);
+                            continue;
+                        }
+                        growPdl(top + 2 * n);
+                        pdl[top++] = v1.rest(n);
+                        pdl[top++] = v2.rest(n);
+                        for (int i = n - 1; i > 0; i--) {
+                            pdl[top++] = v1.element(i);
+                            pdl[top++] = v2.element(i);
+                        }
+                    } else {
+                        pdl[top++] = (v1.tag == SEG) ? v1.rest(1) : v1.tail;
+                        pdl[top++] = (v2.tag == SEG) ? v2.rest(1) : v2.tail;
+                    }
+                    v1 = (v1.tag == SEG) ? v1.element(0) : v1.head;
+                    v2 = (v2.tag == SEG) ? v2.element(0) : v2.head;
+                    continue;
+                } else if ((v1.tag == STR) && (v2.tag == STR) && (v1.args.length == v2.args.length) &&
+                        ((v1.atom == v2.atom) || (v1.atom < 0) || (v2.atom < 0))) {
+                    // the first arguments right away, the others wait on the pdl (last one at the bottom)
+                    Variable[] args1 = v1.args;
+                    Variable[] args2 = v2.args;
+                    growPdl(top + 2 * args1.length + 2);
+                    for (int i = args1.length - 1; i > 0; i--) {
+                        pdl[top++] = args1[i];
+                        pdl[top++] = args2[i];
+                    }
+                    if ((v1.atom < 0) || (v2.atom < 0)) {
+                        // a variable functor is unified like an argument
+                        pdl[top++] = functorTerm(v1);
+                        pdl[top++] = functorTerm(v2);
+                    }
+                    v1 = args1[0];
+                    v2 = args2[0];
+                    continue;
+                } else {
+                    clearPdl(top);
+                    return false;
+                }
+            }
+            if (top == 0)
+                return true;
+            v2 = pdl[--top];
+            pdl[top] = null;
+            v1 = pdl[--top];
+            pdl[top] = null;
         }
+    }
 
-        if (v1.tag == REF) {
-            trail.addEntry(v1);
-            v1.copyFrom(v2);
-            return true;
-        }
-        if (v2.tag == REF) {
-            trail.addEntry(v2);
-            v2.copyFrom(v1);
-            return true;
-        }
+    // returns the functor of structure v as a term of its own
+    private Variable functorTerm(Variable v) {
+        if (v.atom < 0)
+            return v.head;
+        Variable f = new Variable();
+        f.tag = CON;
+        f.atom = v.atom;
+        return f;
+    }
 
-        if ((v1.tag == CON) && (v2.tag == CON)) {
-            return v1.value.compareTo(v2.value) == 0;
+    // makes sure that the pdl can hold n entries
+    private void growPdl(int n) {
+        if (n > pdl.length) {
+            Variable[] newPdl = new Variable[Math.max(n, pdl.length * 2)];
+            System.arraycopy(pdl, 0, newPdl, 0, pdl.length);
+            pdl = newPdl;
         }
+    }
 
-        if (((v1.tag == LIS) && (v2.tag == LIS)) || ((v1.tag == STR) && (v2.tag == STR))) {
-            return (unify_variable2(v1.head, v2.head)) && (unify_variable2(v1.tail, v2.tail));
+    // drops the first top entries of the pdl after a failed unification
+    private void clearPdl(int top) {
+        for (int i = 0; i < top; i++)
+            pdl[i] = null;
+    }
+
+    // print returns the text of v, or of the elements of list v if elements is set. Pending parts
+    // are kept on an explicit stack, so that long lists and deep terms can be printed: a Variable
+    // entry is printed as a term if its mode is PRINT_TERM and as list elements if it is
+    // PRINT_ELEMENTS, a String entry is copied as it is
+    private static final int PRINT_TERM = 0;
+    private static final int PRINT_ELEMENTS = 1;
+
+    private String print(Variable v, boolean elements) {
+        StringBuilder result = new StringBuilder();
+        Object[] stack = new Object[16];
+        int[] modes = new int[16];
+        int top = 0;
+        stack[top] = v;
+        modes[top++] = elements ? PRINT_ELEMENTS : PRINT_TERM;
+        while (top > 0) {
+            if (top + 3 > stack.length) {
+                Object[] newStack = new Object[stack.length * 2];
+                System.arraycopy(stack, 0, newStack, 0, top);
+                stack = newStack;
+                int[] newModes = new int[modes.length * 2];
+                System.arraycopy(modes, 0, newModes, 0, top);
+                modes = newModes;
+            }
+            Object item = stack[--top];
+            stack[top] = null;
+            if (item instanceof String) {
+                result.append((String) item);
+                continue;
+            }
+            Variable t = (Variable) item;
+            if (modes[top] == PRINT_ELEMENTS) {
+                if (t.tag == LIS) {
+                    if ((t.tail != null) && (!isConstant(t.tail))) {
+                        stack[top] = t.tail;
+                        modes[top++] = PRINT_ELEMENTS;
+                        stack[top++] = ", ";
+                    }
+                    stack[top] = t.head;
+                    modes[top++] = PRINT_TERM;
+                } else if (t.tag == SEG) {
+                    // constant elements are printed right away; the first other one and everything
+                    // behind it wait on the stack
+                    int n = t.length();
+                    int i = 0;
+                    Variable e = null;
+                    for (; i < n; i++) {
+                        e = t.element(i).deref();
+                        if (!isConstant(e))
+                            break;
+                        if (i > 0)
+                            result.append(", ");
+                        appendConstant(result, e);
+                    }
+                    if (i + 1 < n) {
+                        stack[top] = t.rest(i + 1);
+                        modes[top++] = PRINT_ELEMENTS;
+                        stack[top++] = ", ";
+                    } else if ((t.tail != null) && (!isConstant(t.tail))) {
+                        stack[top] = t.tail;
+                        modes[top++] = PRINT_ELEMENTS;
+                        stack[top++] = ", ";
+                    }
+                    if (i < n) {
+                        stack[top] = e;
+                        modes[top++] = PRINT_TERM;
+                        if (i > 0)
+                            stack[top++] = ", ";
+                    }
+                }
+                continue;
+            }
+            t = t.deref();
+            if (t.tag == REF)
+                result.append("_"); // "(unbound variable)";
+            else if (isConstant(t))
+                appendConstant(result, t);
+            else if (isList(t)) {
+                result.append('[');
+                stack[top++] = "]";
+                stack[top] = t;
+                modes[top++] = PRINT_ELEMENTS;
+            } else if (t.tag == STR) {
+                // arguments go onto the stack last one first, each but the first behind a comma
+                Variable[] args = t.args;
+                if (top + 2 * args.length + 3 > stack.length) {
+                    int length = Math.max(stack.length * 2, top + 2 * args.length + 6);
+                    Object[] newStack = new Object[length];
+                    System.arraycopy(stack, 0, newStack, 0, top);
+                    stack = newStack;
+                    int[] newModes = new int[length];
+                    System.arraycopy(modes, 0, newModes, 0, top);
+                    modes = newModes;
+                }
+                stack[top++] = ")";
+                for (int i = args.length - 1; i >= 0; i--) {
+                    stack[top] = args[i];
+                    modes[top++] = PRINT_TERM;
+                    if (i > 0)
+                        stack[top++] = ", ";
+                }
+                if (t.atom >= 0)
+                    result.append(AtomTable.name(t.atom)).append('(');
+                else {
+                    stack[top++] = "(";
+                    stack[top] = t.head;
+                    modes[top++] = PRINT_TERM;
+                }
+            }
         }
+        return result.toString();
+    }
 
-        return false;
+    // appends constant v to result, as toString() shows it
+    private static void appendConstant(StringBuilder result, Variable v) {
+        if (v.tag != CON)
+            result.append(v.value());
+        else {
+            String value = AtomTable.name(v.atom);
+            if ((value.length() > 2) && (value.indexOf(".0") == value.length() - 2))
+                result.append(value, 0, value.length() - 2);
+            else
+                result.append(value);
+        }
     }
 
     private boolean unify_list2(Variable list, Variable head, Variable tail) {
@@ -646,7 +1491,7 @@ public class Wam {
         // head = head.deref();
         // tail = tail.deref();
         if (list.tag == REF) {
-            trail.addEntry(list);
+            bind(list);
             list.tag = LIS;
             list.head = head;
             list.tail = tail;
@@ -656,30 +1501,52 @@ public class Wam {
             if (unify_variable2(head, list.head)) {
                 return unify_variable2(tail, list.tail);
             }
+        } else if (list.tag == SEG) {
+            if (unify_variable2(head, list.element(0))) {
+                return unify_variable2(tail, list.rest(1));
+            }
         }
         return false;
     }
 
+    // unify_struc2 unifies struc with the structure whose functor is head and whose arguments are the
+    // elements of list tail, as built for a variable functor (or in hand-written WAM code)
     private boolean unify_struc2(Variable struc, Variable head, Variable tail) {
-        // struc = struc.deref();
-        // head = head.deref();
-        // tail = tail.deref();
+        Variable functor = head.deref();
+        int n = 0;
+        for (Variable t = tail.deref(); isList(t); t = t.tail.deref())
+            n += (t.tag == SEG) ? t.length() : 1;
+        Variable[] args = new Variable[n];
+        n = 0;
+        for (Variable t = tail.deref(); isList(t); t = t.tail.deref()) {
+            if (t.tag == SEG) {
+                for (int i = 0; i < t.length(); i++)
+                    args[n++] = t.element(i);
+            } else
+                args[n++] = t.head;
+        }
+        if (functor.tag == CON)
+            return unify_struc2(struc, functor.atom, args);
+        Variable term = new Variable();
+        term.setStructure(-1, args);
+        term.head = functor;
+        return unify_variable2(struc, term);
+    }
+
+    // unify_struc2 unifies struc with the structure functor(args)
+    private boolean unify_struc2(Variable struc, int functor, Variable[] args) {
+        struc = struc.deref();
         if (struc.tag == REF) {
-            trail.addEntry(struc);
-            struc.tag = STR;
-            struc.head = head;
-            struc.tail = tail;
+            bind(struc);
+            struc.setStructure(functor, args);
             return true;
         }
-        if (struc.tag == STR) {
-            if (unify_variable2(head, struc.head)) {
-                return unify_variable2(tail, struc.tail);
-            }
-        }
-        return false;
+        Variable term = new Variable();
+        term.setStructure(functor, args);
+        return unify_variable2(struc, term);
     }
 
-    private void unify_variable(String s1, String s2) {
+    private void unify_variable(int s1, int s2) {
         Variable v1 = get_ref(s1);
         Variable v2 = get_ref(s2);
         if (unify_variable2(v1, v2)) {
@@ -689,7 +1556,7 @@ public class Wam {
         }
     }
 
-    private void unify_list(String l, String h, String t) {
+    private void unify_list(int l, int h, int t) {
         Variable list = get_ref(l);
         Variable head = get_ref(h);
         Variable tail = get_ref(t);
@@ -700,7 +1567,7 @@ public class Wam {
         }
     }
 
-    private void unify_struc(String s, String h, String t) {
+    private void unify_struc(int s, int h, int t) {
         Variable struc = get_ref(s);
         Variable head = get_ref(h);
         Variable tail = get_ref(t);
@@ -711,14 +1578,83 @@ public class Wam {
         }
     }
 
-    private void put_constant(String c, String a) {
+    // put_structure builds the structure functor(args) in one step, taking its arguments from the
+    // registers or constants listed in args, and unifies it with target
+    private void put_structure(int target, int functor, int[] args) {
+        Variable[] arguments = new Variable[args.length];
+        for (int i = 0; i < args.length; i++)
+            arguments[i] = cell(args[i]);
+        if (unify_struc2(get_ref(target), functor, arguments)) {
+            programCounter++;
+        } else {
+            backtrack();
+        }
+    }
+
+    // put_segment builds the packed list of the elements listed in the argument list with the given
+    // index, followed by the list given as its first entry, and unifies it with target. A list of
+    // constants only is built once, its segment is shared by every execution of the statement
+    private void put_segment(int target, int index) {
+        Variable segment = (index < segments.length) ? segments[index] : null;
+        if (segment == null) {
+            int[] operands = p.getArguments(index);
+            boolean ground = true;
+            boolean integers = true;
+            for (int i = 0; i < operands.length; i++) {
+                if ((operands[i] & Program.KIND_MASK) != Program.KIND_CONST) {
+                    ground = false;
+                } else if ((i > 0) && (constantCells[operands[i] >> Program.KIND_BITS].tag != INT)) {
+                    integers = false;
+                }
+            }
+            segment = new Variable();
+            if (ground && integers) {
+                long[] elements = new long[operands.length - 1];
+                for (int i = 0; i < elements.length; i++)
+                    elements[i] = constantCells[operands[i + 1] >> Program.KIND_BITS].number;
+                segment.setSegment(elements, cell(operands[0]));
+            } else {
+                Variable[] elements = new Variable[operands.length - 1];
+                for (int i = 0; i < elements.length; i++)
+                    elements[i] = cell(operands[i + 1]);
+                segment.setSegment(elements, cell(operands[0]));
+            }
+            if (ground) {
+                if (index >= segments.length) {
+                    Variable[] newSegments = new Variable[Math.max(index + 1, segments.length * 2)];
+                    System.arraycopy(segments, 0, newSegments, 0, segments.length);
+                    segments = newSegments;
+                }
+                segments[index] = segment;
+            }
+        }
+        Variable list = get_ref(target).deref();
+        if (list.tag == REF) {
+            bind(list);
+            list.copyFrom(segment);
+            programCounter++;
+        } else if (unify_variable2(list, segment)) {
+            programCounter++;
+        } else {
+            backtrack();
+        }
+    }
+
+    // cell returns the term an operand of put_structure or put_segment stands for; constant cells are
+    // never bound, so they can be shared by all terms
+    private Variable cell(int operand) {
+        if ((operand & Program.KIND_MASK) == Program.KIND_CONST)
+            return constantCells[operand >> Program.KIND_BITS];
+        return get_ref(operand).deref();
+    }
+
+    private void put_constant(Variable c, int a) {
         Variable Ai = get_ref(a);
-        Ai.tag = CON;
-        Ai.value = c;
+        Ai.copyFrom(c);
         programCounter++;
     }
 
-    private void put_list(String h, String t, String a) {
+    private void put_list(int h, int t, int a) {
         Variable Ai = get_ref(a);
         Ai.tag = LIS;
         Ai.head = get_ref(h).deref();
@@ -726,14 +1662,14 @@ public class Wam {
         programCounter++;
     }
 
-    private void put_value(String s1, String s2) {
+    private void put_value(int s1, int s2) {
         Variable Vi = get_ref(s1);
         Variable An = get_ref(s2);
         An.copyFrom(Vi);
         programCounter++;
     }
 
-    private void put_variable(String s1, String s2) {
+    private void put_variable(int s1, int s2) {
         Variable Vn = get_ref(s1).deref();
         Variable Ai = get_ref(s2);
         Ai.tag = REF;
@@ -741,14 +1677,216 @@ public class Wam {
         programCounter++;
     }
 
-    private void try_me_else(int whom) {
-        int i;
-        ChoicePoint cp = new ChoicePoint(arguments, trail.getLength(), continuationPointer);
-        cp.lastCP = choicePoint;
-        cp.cutPoint = cutPoint;
-        choicePoint = cp;
+    // try_me_else pushes a choicepoint saving the procedure's arity argument registers
+    // (all of them if the arity is unknown, e.g. in hand-written WAM code). Being the entry of a
+    // procedure's clause chain, it first checks whether large procedures can be narrowed down by
+    // an index on one of the bound arguments
+    private void try_me_else(int whom, int arity, int index) {
+        ClauseIndex clauses = (index >= 0) ? p.getIndex(index) : null;
+        if ((clauses != null) && (arity > 0) && (clauses.size() >= ClauseIndex.JIT_THRESHOLD)) {
+            ClauseList best = null;
+            for (int i = 0; (i < arity) && (i < arguments.length); i++) {
+                Variable v = arguments[i].deref();
+                if (isConstant(v)) {
+                    ClauseList alternatives = clauses.lookup(i, keyKind(v), keyValue(v));
+                    if ((best == null) || (alternatives.size < best.size)) {
+                        best = alternatives;
+                    }
+                }
+            }
+            if ((best != null) && (best.size < clauses.size())) {
+                enterClauses(clauses, best);
+                return;
+            }
+        }
+        ChoicePoint cp = pushChoicePoint(arity);
         cp.nextClause = whom;
+        cp.alternatives = null;
+        programCounter++;
+    }
+
+    private ChoicePoint pushChoicePoint(int arity) {
+        int top = envTop();
+        if (choicePoint == choicePoints.length) {
+            ChoicePoint[] newChoicePoints = new ChoicePoint[choicePoints.length * 2];
+            System.arraycopy(choicePoints, 0, newChoicePoints, 0, choicePoints.length);
+            choicePoints = newChoicePoints;
+        }
+        ChoicePoint cp = choicePoints[choicePoint];
+        if (cp == null) {
+            cp = new ChoicePoint();
+            choicePoints[choicePoint] = cp;
+        }
+        choicePoint++;
+        cp.procedure = null;
+        cp.save(arguments, ((arity >= 0) && (arity <= arguments.length)) ? arity : arguments.length);
+        cp.returnAddress = continuationPointer;
+        cp.trailPointer = trail.getLength();
+        cp.stamp = ++clock;
+        cp.cutPoint = cutPoint;
         cp.lastEnviron = env;
+        cp.envTop = top;
+        return cp;
+    }
+
+    // switch_on_term dispatches on the type of the first argument
+    private void switch_on_term(int variable, int constant, int list, int structure) {
+        Variable v = arguments[0].deref();
+        int target;
+        if (v.tag == REF) {
+            target = variable;
+        } else if (isConstant(v)) {
+            target = constant;
+        } else if (isList(v)) {
+            target = list;
+        } else {
+            target = structure;
+        }
+        if (target >= 0) {
+            programCounter = target;
+        } else {
+            backtrack();
+        }
+    }
+
+    private void switch_on_constant(int index) {
+        Variable v = arguments[0].deref();
+        switchOnKey(p.getIndex(index), keyKind(v), keyValue(v));
+    }
+
+    // switch_on_structure handles lists (key ".") as well as structures (key "f/n")
+    private void switch_on_structure(int index) {
+        Variable v = arguments[0].deref();
+        int kind = keyKind(v);
+        if (kind == REF) {  // the functor itself is unbound: any clause may match
+            ClauseIndex clauses = p.getIndex(index);
+            if (clauses.getFirstClause() >= 0) {
+                programCounter = clauses.getFirstClause();
+            } else {
+                backtrack();
+            }
+            return;
+        }
+        switchOnKey(p.getIndex(index), kind, keyValue(v));
+    }
+
+    private void switchOnKey(ClauseIndex clauses, int kind, long value) {
+        enterClauses(clauses, clauses.lookup(0, kind, value));
+    }
+
+    // keyKind returns the kind of the index key of the dereferenced term v (see KeyTable), REF if any
+    // clause may match it
+    private static int keyKind(Variable v) {
+        switch (v.tag) {
+            case SEG:
+                return LIS;
+            case STR:
+                return (v.functor() >= 0) ? STR : REF;
+            case CON:
+            case LIS:
+            case INT:
+            case FLT:
+            case BIG:
+                return v.tag;
+            default:
+                return REF;
+        }
+    }
+
+    // keyValue returns the value of the index key of the dereferenced term v (see KeyTable)
+    private static long keyValue(Variable v) {
+        switch (v.tag) {
+            case CON:
+                return v.atom;
+            case INT:
+            case FLT:
+                return v.number;
+            case BIG:
+                return v.big.hashCode();
+            case STR:
+                return KeyTable.structure(v.functor(), v.args.length);
+            default:
+                return 0;
+        }
+    }
+
+    // enterClauses continues with the given clauses of a procedure, right behind their try_me_else
+    // (or similar) statement. A choicepoint is only needed if there are several of them
+    private void enterClauses(ClauseIndex clauses, ClauseList alternatives) {
+        if (alternatives.size == 0) {
+            backtrack();
+        } else if (alternatives.size == 1) {
+            programCounter = alternatives.numbers[0] + 1;
+        } else {
+            ChoicePoint cp = pushChoicePoint(clauses.getArity());
+            cp.alternatives = alternatives.numbers;
+            cp.alternative = 1;
+            cp.alternativesEnd = alternatives.size;
+            programCounter = alternatives.numbers[0] + 1;
+        }
+    }
+
+    // dispatch enters the clauses of a dynamic procedure that are alive in the current generation,
+    // narrowed down by the keys of the first argument and, for large procedures, of the other bound
+    // ones. The choicepoint keeps the generation, so clauses asserted or retracted later on do not
+    // change the alternatives of this call
+    private void dispatch(int number) {
+        if (number < 0) {
+            backtrack();
+            return;
+        }
+        Procedure procedure = p.getProcedure(number);
+        int generation = p.getGeneration();
+        ClauseList clauses = procedure.lookup(0, REF, 0);
+        for (int i = 0; (i < procedure.getArity()) && (i < arguments.length); i++) {
+            Variable v = arguments[i].deref();
+            if ((i == 0) || (isConstant(v))) {
+                int kind = keyKind(v);
+                if (kind != REF) {
+                    ClauseList alternatives = procedure.lookup(i, kind, keyValue(v));
+                    if (alternatives.size < clauses.size) {
+                        clauses = alternatives;
+                    }
+                }
+            }
+        }
+        int end = clauses.size;
+        int first = nextVisible(procedure, clauses.numbers, 0, end, generation);
+        if (first == end) {
+            backtrack();
+            return;
+        }
+        int second = nextVisible(procedure, clauses.numbers, first + 1, end, generation);
+        if (second < end) {
+            ChoicePoint cp = pushChoicePoint(procedure.getArity());
+            cp.procedure = procedure;
+            cp.alternatives = clauses.numbers;
+            cp.alternative = second;
+            cp.alternativesEnd = end;
+            cp.generation = generation;
+        }
+        programCounter = procedure.getLine(clauses.numbers[first]) + 1;
+    }
+
+    // nextVisible returns the index of the first clause of clauses[from .. end - 1] visible in the given generation, end if there is none
+    private static int nextVisible(Procedure procedure, int[] clauses, int from, int end, int generation) {
+        while ((from < end) && (!procedure.isVisible(clauses[from], generation))) {
+            from++;
+        }
+        return from;
+    }
+
+    // retry_me_else lets the current choicepoint continue with the next alternative
+    private void retry_me_else(int whom) {
+        if (choicePoint > 0)
+            choicePoints[choicePoint - 1].nextClause = whom;
+        programCounter++;
+    }
+
+    // trust_me removes the current choicepoint, since the last alternative is being tried
+    private void trust_me() {
+        if (choicePoint > 0)
+            choicePoints[--choicePoint].release();
         programCounter++;
     }
 
@@ -765,15 +1903,40 @@ public class Wam {
         }
     }
 
-    private void allocate() {
-        Environment environment = new Environment(continuationPointer, env);
-        env = environment;
+    // returns the first free index of the environment stack; environments protected by a choicepoint are kept
+    private int envTop() {
+        int top = env + envFrames[env + ENV_SIZE];
+        if ((choicePoint > 0) && (choicePoints[choicePoint - 1].envTop > top)) {
+            top = choicePoints[choicePoint - 1].envTop;
+        }
+        return top;
+    }
+
+    // allocate pushes a new environment with room for exactly size permanent variables
+    private void allocate(int size) {
+        int e = envTop() + ENV_HEADER;
+        if (e + size > envStack.length) {
+            int length = Math.max(envStack.length * 2, e + size);
+            Variable[] newStack = new Variable[length];
+            System.arraycopy(envStack, 0, newStack, 0, envStack.length);
+            int[] newFrames = new int[length];
+            System.arraycopy(envFrames, 0, newFrames, 0, envFrames.length);
+            envStack = newStack;
+            envFrames = newFrames;
+        }
+        envFrames[e + ENV_PREVIOUS] = env;
+        envFrames[e + ENV_RETURN] = continuationPointer;
+        envFrames[e + ENV_SIZE] = size;
+        for (int i = e; i < e + size; i++) {
+            envStack[i] = new Variable();
+        }
+        env = e;
         programCounter++;
     }
 
     private void deallocate() {
-        continuationPointer = env.returnAddress;
-        env = env.lastEnviron;
+        continuationPointer = envFrames[env + ENV_RETURN];
+        env = envFrames[env + ENV_PREVIOUS];
         programCounter++;
     }
 
@@ -789,51 +1952,63 @@ public class Wam {
         }
     }
 
-    // not_call performs a negated call by invoking a new WAM process
-    // if the new process' execution fails, not_call is successful (backtrack, otherwise)
-    private void not_call(int target) {
-        if ((target <= -10) && (target >= -40)) {
-            backtrack();
-            return;
+    // execute performs the last call of a clause whose environment has already been deallocated:
+    // the callee returns straight to our own continuation (last call optimization)
+    private void execute(int target) {
+        if (target >= 0) {
+            cutPoint = choicePoint;
+            programCounter = target;
+        } else {
+            // internal predicates continue at programCounter + 1, so let them run as if called
+            // from right in front of our continuation
+            programCounter = continuationPointer - 1;
+            if (!internalPredicate(target)) {
+                backtrack();
+            }
         }
-        // create a second WAM with the same code inside
-        Wam wam2 = new Wam(p);
-        wam2.programCounter = target;  // set programCounter the continuationPointer to their desired values
-        wam2.continuationPointer = p.getStatementCount();
-        // add a halt statement, making wam2 return "true" upon success. this is necessary!
-        p.addStatement(new Statement("", "halt", ""));
-        wam2.arguments.clear();  // now, duplicate the argument vector
-        for (int i = 0; i < arguments.size(); i++) {
-            wam2.arguments.addElement(new Variable((Variable) arguments.elementAt(i)));
-        }
-        // we don't need any benchmarking information from the child WAM
-        wam2.debugOn = debugOn;
-        wam2.benchmarkOn = 0;
-        wam2.run();
-        boolean wam2failed = wam2.failed;
-        while (wam2.choicePoint != null) {
-            wam2.backtrack();
-        }
-        wam2.backtrack();
-        p.deleteFromLine(p.getStatementCount() - 1);  // remove the earlier added "halt" statement from p
-        opCount += wam2.opCount;
-        backtrackCount += wam2.backtrackCount;  // update benchmarking information
-        if (wam2failed) {  // if wam2 failed, return "success"
-            failed = false;
-            programCounter++;
-        } else // if it succeeded, consider this bad (since we are inside a not statement)
-            backtrack();
     }
 
-    private void cut(String Vn) {
-        Variable v = get_ref(Vn);
-        choicePoint = v.cutLevel;
+    private void cut(int Vn) {
+        int level = (int) get_ref(Vn).number;
+        if (level < choicePoint)
+            cutChoicePoints(level);
+        programCounter++;
+    }
+
+    // cutChoicePoints removes all choicepoints above level and tidies the trail, which then only needs
+    // the bindings of variables older than the new top choicepoint
+    private void cutChoicePoints(int level) {
+        for (int i = level; i < choicePoint; i++)
+            choicePoints[i].release();
+        choicePoint = level;
+        if (level > 0) {
+            ChoicePoint cp = choicePoints[level - 1];
+            trail.tidy(cp.trailPointer, cp.stamp);
+        } else
+            trail.tidy(0, 0);
+    }
+
+    // get_barrier remembers the current number of choicepoints, so that a following cut removes all
+    // choicepoints created after it, e.g. the one of a negation
+    private void get_barrier(int Vn) {
+        get_ref(Vn).number = choicePoint;
+        programCounter++;
+    }
+
+    // soft_cut commits to the condition of "C *-> T ; E" without dropping the condition's own
+    // choicepoints: the else-choicepoint right behind the barrier is removed if it is the last one,
+    // otherwise it is redirected to dead, where it just fails
+    private void soft_cut(int Vn, int dead) {
+        int level = (int) get_ref(Vn).number;
+        if (level == choicePoint - 1)
+            cutChoicePoints(level);
+        else if (level < choicePoint)
+            choicePoints[level].nextClause = dead;
         programCounter++;
     }
 
-    private void get_level(String Vn) {
-        Variable v = get_ref(Vn);
-        v.cutLevel = cutPoint;
+    private void get_level(int Vn) {
+        get_ref(Vn).number = cutPoint;
         programCounter++;
     } // of WAM.get_level(String)
 
@@ -847,24 +2022,51 @@ public class Wam {
         }
         backtrackCount++;
         failed = true;
-        if (choicePoint != null) {
-            continuationPointer = choicePoint.returnAddress;
-            programCounter = choicePoint.nextClause;
-            env = choicePoint.lastEnviron;
-            int tp = choicePoint.trailPointer;
+        if (choicePoint > 0) {
+            ChoicePoint cp = choicePoints[choicePoint - 1];
+            continuationPointer = cp.returnAddress;
+            env = cp.lastEnviron;
+            int tp = cp.trailPointer;
             for (i = trail.getLength() - 1; i >= tp; i--) {
                 trail.undo(i);
             }
             trail.setLength(tp);
-            arguments = choicePoint.arguments;
-            cutPoint = choicePoint.cutPoint;
-            choicePoint = choicePoint.lastCP;
-        } else {
-            for (i = trail.getLength() - 1; i >= 0; i--) {
-                trail.undo(i);
+            cp.restore(arguments);
+            cutPoint = cp.cutPoint;
+            if (cp.alternatives == null) {
+                programCounter = cp.nextClause;
+            } else if (cp.procedure != null) {
+                // choicepoint created by dispatch: try the next clause visible to the call, dropping the choicepoint for the last one
+                Procedure procedure = cp.procedure;
+                int clause = cp.alternatives[cp.alternative];
+                cp.alternative = nextVisible(procedure, cp.alternatives, cp.alternative + 1, cp.alternativesEnd, cp.generation);
+                if (cp.alternative == cp.alternativesEnd) {
+                    cp.release();
+                    choicePoint--;
+                }
+                programCounter = procedure.getLine(clause) + 1;
+            } else {
+                // choicepoint created by indexing: try the next candidate clause, dropping the choicepoint for the last one
+                programCounter = cp.alternatives[cp.alternative++] + 1;
+                if (cp.alternative == cp.alternativesEnd) {
+                    cp.release();
+                    choicePoint--;
+                }
             }
-            programCounter = -1;
+        } else
+            unwind();
+    }
+
+    // unwind undoes all bindings and drops all choicepoints, giving up the current computation
+    private void unwind() {
+        for (int i = trail.getLength() - 1; i >= 0; i--) {
+            trail.undo(i);
         }
+        trail.setLength(0);
+        for (int i = 0; i < choicePoint; i++)
+            choicePoints[i].release();
+        choicePoint = 0;
+        programCounter = -1;
     }
 
     /******************** BEGIN INTERNAL PREDICATES ********************/
@@ -872,11 +2074,11 @@ public class Wam {
     // internalPredicate manages the execution of all built-in predicates, e.g. write, consult, isbound
     private boolean internalPredicate(int index) {
         boolean result = true;
-        Variable v = (Variable) arguments.elementAt(0);
+        Variable v = arguments[0];
         if (index == callIsAtom) {
             isAtom(v.deref());
         } else if (index == callIsInteger) {
-            isInteger(v.toString());
+            isInteger(v.deref());
         } else if (index == callIsBound) {
             is_bound(v);
         } else if (index == callWrite) {
@@ -889,7 +2091,7 @@ public class Wam {
             writeLn("");
             programCounter++;
         } else if (index == callAssert) {
-            assert_(v.head.toString(), v.toString());
+            assert_(v.deref());
             return true;
         } else if (index == callRetractOne) {
             if (retract(v.toString()))
@@ -903,21 +2105,18 @@ public class Wam {
             Integer intg;
             int target = -1;
             if (v2.tag == CON) {
-                intg = (Integer) p.labels.get(v2.value);
+                intg = (Integer) p.labels.get(v2.value());
                 if (intg != null) {
                     target = intg.intValue();
                 }
-            } else if (v2.tag == STR) {
-                intg = (Integer) p.labels.get(v2.head.value);
+            } else if ((v2.tag == STR) && (v2.functor() >= 0)) {
+                intg = (Integer) p.labels.get(AtomTable.name(v2.functor()));
                 if (intg != null) {
                     target = intg.intValue();
-                    Variable tail = v2.tail;
-                    int cnt = 0;
-                    while (tail != null) {
-                        get_ref("A" + cnt).tag = REF;
-                        get_ref("A" + cnt).reference = tail.head;
-                        cnt++;
-                        tail = tail.tail;
+                    for (int i = 0; i < v2.args.length; i++) {
+                        Variable a = get_ref((i << Program.KIND_BITS) | Program.KIND_A);
+                        a.tag = REF;
+                        a.reference = v2.args[i];
                     }
                 }
             }
@@ -930,8 +2129,14 @@ public class Wam {
             load(v.toString());
         else if (index == callConsult)
             consult(v.toString());
+        else if (index == callLength)
+            length(arguments[0], arguments[1]);
+        else if (index == callNth)
+            nth(arguments[0], arguments[1], arguments[2]);
+        else if (index == callLast)
+            last(arguments[0], arguments[1]);
         else if (index == callReadLn) {
-            Variable w = new Variable("", readLn());
+            Variable w = new Variable(readLn());
             unify_variable2(v.deref(), w);
             programCounter++;
         } else
@@ -940,81 +2145,164 @@ public class Wam {
     }
 
     private void load(String fileName) {
-        Program prog = CodeReader.readProgram(fileName);
+        Program prog = readCode(fileName);
         if (prog == null) {
             if (fileName.indexOf(".wam") <= 0) {  // if compilation didn't work, try with different file extension
                 writeLn("File \"" + fileName + "\" could not be opened.");
                 writeLn("Trying \"" + fileName + ".wam\" instead.");
-                prog = CodeReader.readProgram(fileName + ".wam");
+                prog = readCode(fileName + ".wam");
             }
         }
         if (prog == null) {
             backtrack();
         } else {
-            p.addProgram(prog);
-            p.updateLabels();
+            p.append(prog);
             programCounter++;
         }
     }
 
+    // readCode reads WAM code from an object file (see ObjectFile) or a text file (see CodeReader)
+    private Program readCode(String fileName) {
+        if (ObjectFile.isObjectFile(fileName)) {
+            return ObjectFile.read(fileName, this);
+        }
+        return CodeReader.readProgram(fileName);
+    }
+
     private void isAtom(Variable v) {
         v = v.deref();
-        if ((v.tag == CON) || (v.tag == REF))
+        if (isConstant(v) || (v.tag == REF))
             programCounter++;
         else
             backtrack();
     }
 
-    // checks if stuff contains an integer number
-    private void isInteger(String stuff) {
-        try {
-            parseInt(stuff);
+    // checks if v is bound to an integer number
+    private void isInteger(Variable v) {
+        if ((v.tag == INT) || (v.tag == BIG))
             programCounter++;
-        } catch (Exception e) {
+        else
             backtrack();
-        }
     }
 
-    // assert asserts a new clause to the current program
-    private void assert_(String label, String clause) {
-        PrologCompiler pc = new PrologCompiler(this);
-        Program prog = pc.compileSimpleClause(clause + ".");
-        if (prog != null) {
-            p.addClause(label, prog);
+    // length unifies n with the number of elements of list, taking packed segments in one step. A
+    // partial list is completed with n fresh variables if n is given, and closed (as its shortest
+    // completion) otherwise
+    private void length(Variable list, Variable n) {
+        long count = 0;
+        Variable t = list.deref();
+        while (isList(t)) {
+            count += (t.tag == SEG) ? t.length() : 1;
+            t = t.tail.deref();
+        }
+        Variable m = n.deref();
+        if (t.tag == REF) {
+            if ((m.tag == INT) && (m.number >= count) && (m.number - count <= Integer.MAX_VALUE)) {
+                int missing = (int) (m.number - count);
+                bind(t);
+                if (missing == 0) {
+                    t.tag = CON;
+                    t.atom = NIL;
+                } else {
+                    Variable[] elements = new Variable[missing];
+                    for (int i = 0; i < missing; i++)
+                        elements[i] = new Variable();
+                    Variable nil = new Variable();
+                    nil.tag = CON;
+                    nil.atom = NIL;
+                    t.setSegment(elements, nil);
+                }
+                programCounter++;
+                return;
+            }
+            if (m.tag != REF) {
+                backtrack();
+                return;
+            }
+            bind(t);
+            t.tag = CON;
+            t.atom = NIL;
+        } else if (!isNil(t)) {
+            backtrack();
+            return;
+        }
+        Variable c = new Variable();
+        c.setInteger(count);
+        if (unify_variable2(m, c))
             programCounter++;
-            Variable v = new Variable("", label);
-            v.tag = ASSERT;
-            trail.addEntry(v);
-        } else
+        else
             backtrack();
     }
 
-    private void removeProgramLines(int fromLine) {
-        int size = p.getStatementCount();
-        int removed = p.deleteFromLine(fromLine);
-        if (programCounter >= fromLine) {
-            if (programCounter >= fromLine + removed)
-                programCounter -= removed;
-            else
-                backtrack();
+    // nth unifies element with the n-th element of list, counting from 1
+    private void nth(Variable n, Variable list, Variable element) {
+        Variable m = n.deref();
+        if ((m.tag != INT) || (m.number < 1)) {
+            backtrack();
+            return;
+        }
+        long k = m.number - 1;
+        Variable t = list.deref();
+        Variable e = null;
+        while (isList(t)) {
+            if (t.tag == LIS) {
+                if (k == 0) {
+                    e = t.head;
+                    break;
+                }
+                k--;
+            } else {
+                if (k < t.length()) {
+                    e = t.element((int) k);
+                    break;
+                }
+                k -= t.length();
+            }
+            t = t.tail.deref();
         }
+        if ((e != null) && unify_variable2(element, e))
+            programCounter++;
+        else
+            backtrack();
     }
 
-    // retract undoes an assert action
-    private boolean retract(String clauseName) {
-        int index1 = p.getLastClauseOf(clauseName);
-        int index2 = p.getLastClauseButOneOf(clauseName);
-        if (index1 >= 0) {
-            removeProgramLines(index1);
-            if (index2 >= 0) {
-                Statement s = p.getStatement(index2);
-                s.setFunction("trust_me");
-                s.getArgs().setElementAt("", 0);
-                s.arg1 = "";
+    // last unifies element with the last element of list
+    private void last(Variable list, Variable element) {
+        Variable t = list.deref();
+        Variable e = null;
+        while (isList(t)) {
+            Variable rest = t.tail.deref();
+            if (isNil(rest)) {
+                e = (t.tag == SEG) ? t.element(t.length() - 1) : t.head;
+                break;
             }
-            return true;
+            t = rest;
+        }
+        if ((e != null) && unify_variable2(element, e))
+            programCounter++;
+        else
+            backtrack();
+    }
+
+    // assert asserts a new clause to the current program, compiling the fact right from the term
+    private void assert_(Variable clause) {
+        PrologCompiler pc = new PrologCompiler(this);
+        Program prog = pc.compileFact(clause);
+        if (prog != null) {
+            Procedure procedure = p.assertClause(AtomTable.name(clause.tag == CON ? clause.atom : clause.functor()), prog);
+            programCounter++;
+            trail.addEntry(new AssertEntry(procedure, procedure.getClauseCount() - 1));
         } else
+            backtrack();
+    }
+
+    // retract retracts the last clause of the named procedure. Its code stays in place until the next
+    // query, so calls running it are not disturbed
+    private boolean retract(String clauseName) {
+        Procedure procedure = p.dynamicProcedure(clauseName);
+        if ((procedure == null) || (procedure.getLastClause() < 0))
             return false;
+        return p.retract(procedure, procedure.getLastClause());
     }
 
     // calls retract(String) until it returns false
@@ -1034,22 +2322,17 @@ public class Wam {
     // consult compiles a prolog program and loads the resulting code into memory
     private void consult(String fileName) {
         PrologCompiler pc = new PrologCompiler(this);
-        Program prog = pc.compileFile(fileName);
-        if (prog == null)
-            if (fileName.indexOf(".pro") <= 0) {  // if compilation didn't work, try with different file extension
-                writeLn("Trying \"" + fileName + ".prolog\" instead.");
-                prog = pc.compileFile(fileName + ".prolog");
-            }
-        if (prog == null)  // program could not be compiled/loaded for whatever reason
+        p.owner = this;
+        // the clauses are added to the program in memory and linked one after the other
+        boolean loaded = pc.compileFile(fileName, p);
+        if ((!loaded) && (fileName.indexOf(".pro") <= 0)) {  // if compilation didn't work, try with different file extension
+            writeLn("Trying \"" + fileName + ".prolog\" instead.");
+            loaded = pc.compileFile(fileName + ".prolog", p);
+        }
+        if (!loaded)  // program could not be compiled/loaded for whatever reason
             backtrack();
-        else {
-            if (debugOn > 1)  // in case of debug mode, display the WAM code
-                writeLn(prog.toString());
-            p.owner = this;
-            p.addProgram(prog);  // add program to that already in memory
-            p.updateLabels();  // and don't forget to update the jump labels
+        else
             programCounter++;
-        }
     }
 
     /******************** END INTERNAL PREDICATES ********************/
@@ -1065,6 +2348,8 @@ public class Wam {
         writeLn("help                    displays this help");
         writeLn("list                    lists the WAM program currently in memory");
         writeLn("new                     removes all WAM code from memory");
+        writeLn("save FILENAME           writes the WAM code in memory to an object file,");
+        writeLn("                        which load(filename) reads back");
         writeLn("set [PARAM[=VALUE]]     displays all internal parameters (\"set\") or lets");
         writeLn("                        the user set a parameter's new value, respectively");
         writeLn("labels                  displays all labels that can be found in memory");
@@ -1078,6 +2363,28 @@ public class Wam {
         writeLn("" + p.getStatementCount() + " lines of code in memory.");
     }
 
+    // updateConstants creates the constant cells of the pool entries added by assert since the last
+    // call, or of all of them if the program has been decoded anew
+    private void updateConstants(String[] pool) {
+        int from = constantCount;
+        if (pool != constants) {
+            constants = pool;
+            from = 0;
+            segments = new Variable[0];
+        }
+        if ((constantCells == null) || (constantCells.length < pool.length)) {
+            Variable[] newCells = new Variable[pool.length];
+            if (from > 0) {
+                System.arraycopy(constantCells, 0, newCells, 0, from);
+            }
+            constantCells = newCells;
+        }
+        constantCount = p.getConstantCount();
+        for (int i = from; i < constantCount; i++) {
+            constantCells[i] = new Variable(pool[i]);
+        }
+    }
+
     // run starts the actual execution of the program in memory
     public void run() {
         // opCount and backtrackCount are used for benchmarking
@@ -1088,10 +2395,16 @@ public class Wam {
 
         while (programCounter >= 0) {   // programCounter < 0 happens on jump error or backtrack without choicepoint
             failed = false;
-            Statement s = p.getStatement(programCounter);  // get current WAM statement
+            // fetch the decoded program; it is only decoded again if consult, assert etc. have changed it
+            int[] code = p.getCode();
+            String[] pool = p.getConstants();
+            if ((pool != constants) || (constantCount < p.getConstantCount())) {
+                updateConstants(pool);
+            }
+            int pc = programCounter * Program.CODE_WIDTH;  // position of the current WAM statement
 
             if (debugOn > 0)  // display statement and line number information in case of debug mode
-                writeLn("(" + int2FormatStr(programCounter) + ")  " + s.toString());
+                writeLn("(" + int2FormatStr(programCounter) + ")  " + p.getStatement(programCounter).toString());
 
             // we have introduced an artificial stack overflow limit in order to prevent the WAM from infinite execution
             if (opCount++ > maxOpCount) {
@@ -1101,48 +2414,134 @@ public class Wam {
             }
 
             // select WAM command and execute the responsible method, e.g. "deallocate()"
-            int op = s.operator;
-            if (op == opAllocate) allocate();
-            else if (op == opCall) call(s.jump);
-            else if (op == opNotCall) not_call(s.jump);
-            else if (op == opCut) cut(s.arg1);
-            else if (op == opDeallocate) deallocate();
-            else if (op == opGetVariable) get_variable(s.arg1, s.arg2);
-            else if (op == opPutValue) put_value(s.arg1, s.arg2);
-            else if (op == opPutVariable) put_variable(s.arg1, s.arg2);
-            else if (op == opGetLevel) get_level(s.arg1);
-            else if (op == opGetConstant) get_constant(s.arg1, s.arg2);
-            else if (op == opGetValue) get_value(s.arg1, s.arg2);
-            else if (op == opPutConstant) put_constant(s.arg1, s.arg2);
-            else if (op == opUnifyList) unify_list(s.arg1, s.arg2, s.arg3);
-            else if (op == opUnifyStruc) unify_struc(s.arg1, s.arg2, s.arg3);
-            else if (op == opUnifyVariable) unify_variable(s.arg1, s.arg2);
-            else if (op == opRetryMeElse) try_me_else(s.jump);
-            else if (op == opTryMeElse) try_me_else(s.jump);
-            else if (op == opTrustMe) programCounter++;
-            else if (op == opProceed) proceed();
-            else if (op == opBigger) bigger(s.arg1, s.arg2);
-            else if (op == opBiggerEq) biggereq(s.arg1, s.arg2);
-            else if (op == opSmaller) smaller(s.arg1, s.arg2);
-            else if (op == opSmallerEq) smallereq(s.arg1, s.arg2);
-            else if (op == opUnequal) unequal(s.arg1, s.arg2);
-            else if (op == opIs) is(s.arg1, s.arg2.charAt(0), s.arg3, (String) s.getArgs().elementAt(3));
-            else if (op == opHalt) break;
-            else if (op == opNoOp) programCounter++;
-            else if (op == opCreateVariable) create_variable(s.arg1, s.arg2);
-            else { // invalid command: backtrack!
-                writeLn("Invalid operation in line " + int2FormatStr(programCounter));
-                backtrack();
+            switch (code[pc]) {
+                case opAllocate:
+                    allocate(code[pc + 1]);
+                    break;
+                case opCall:
+                    call(code[pc + 1]);
+                    break;
+                case opExecute:
+                    execute(code[pc + 1]);
+                    break;
+                case opSwitchOnTerm:
+                    switch_on_term(code[pc + 1], code[pc + 2], code[pc + 3], code[pc + 4]);
+                    break;
+                case opSwitchOnConstant:
+                    switch_on_constant(code[pc + 1]);
+                    break;
+                case opDispatch:
+                    dispatch(code[pc + 1]);
+                    break;
+                case opSwitchOnStructure:
+                    switch_on_structure(code[pc + 1]);
+                    break;
+                case opCut:
+                    cut(code[pc + 1]);
+                    break;
+                case opDeallocate:
+                    deallocate();
+                    break;
+                case opGetVariable:
+                    get_variable(code[pc + 1], code[pc + 2]);
+                    break;
+                case opPutValue:
+                    put_value(code[pc + 1], code[pc + 2]);
+                    break;
+                case opPutVariable:
+                    put_variable(code[pc + 1], code[pc + 2]);
+                    break;
+                case opGetLevel:
+                    get_level(code[pc + 1]);
+                    break;
+                case opGetBarrier:
+                    get_barrier(code[pc + 1]);
+                    break;
+                case opFail:
+                    backtrack();
+                    break;
+                case opJump:
+                    programCounter = code[pc + 1];
+                    break;
+                case opSoftCut:
+                    soft_cut(code[pc + 1], code[pc + 2]);
+                    break;
+                case opGetConstant:
+                    get_constant(constantCells[code[pc + 1] >> Program.KIND_BITS], code[pc + 2]);
+                    break;
+                case opGetValue:
+                    get_value(code[pc + 1], code[pc + 2]);
+                    break;
+                case opPutConstant:
+                    put_constant(constantCells[code[pc + 1] >> Program.KIND_BITS], code[pc + 2]);
+                    break;
+                case opUnifyList:
+                    unify_list(code[pc + 1], code[pc + 2], code[pc + 3]);
+                    break;
+                case opUnifyStruc:
+                    unify_struc(code[pc + 1], code[pc + 2], code[pc + 3]);
+                    break;
+                case opPutStructure:
+                    put_structure(code[pc + 1], code[pc + 2], p.getArguments(code[pc + 3]));
+                    break;
+                case opPutSegment:
+                    put_segment(code[pc + 1], code[pc + 2]);
+                    break;
+                case opUnifyVariable:
+                    unify_variable(code[pc + 1], code[pc + 2]);
+                    break;
+                case opRetryMeElse:
+                    retry_me_else(code[pc + 1]);
+                    break;
+                case opTryMeElse:
+                    try_me_else(code[pc + 1], code[pc + 2], code[pc + 3]);
+                    break;
+                case opTrustMe:
+                    trust_me();
+                    break;
+                case opProceed:
+                    proceed();
+                    break;
+                case opBigger:
+                    bigger(code[pc + 1], code[pc + 2]);
+                    break;
+                case opBiggerEq:
+                    biggereq(code[pc + 1], code[pc + 2]);
+                    break;
+                case opSmaller:
+                    smaller(code[pc + 1], code[pc + 2]);
+                    break;
+                case opSmallerEq:
+                    smallereq(code[pc + 1], code[pc + 2]);
+                    break;
+                case opUnequal:
+                    unequal(code[pc + 1], code[pc + 2]);
+                    break;
+                case opIs:
+                    is(code[pc + 1], code[pc + 2]);
+                    break;
+                case opHalt:
+                    programCounter = -1;
+                    break;
+                case opNoOp:
+                    programCounter++;
+                    break;
+                case opCreateVariable:
+                    create_variable(code[pc + 1], constants[code[pc + 2] >> Program.KIND_BITS]);
+                    break;
+                default: // invalid command: backtrack!
+                    writeLn("Invalid operation in line " + int2FormatStr(programCounter));
+                    backtrack();
             }
         }
 
-        if (failed) {
-            while (choicePoint != null) backtrack();
-            backtrack();
-        }
+        if (failed)
+            unwind();
         if (benchmarkOn > 0) {
             writeLn("# operations: " + opCount);
             writeLn("# backtracks: " + backtrackCount);
+            writeLn("# environment stack: " + envStack.length);
+            writeLn("# trail: " + trail.getLength());
         }
     }
 
@@ -1152,6 +2551,7 @@ public class Wam {
         QueryCompiler qc = new QueryCompiler(this);
         reset();
         p.deleteFrom("query$");
+        p.compact();
         s = s.trim();
 
         /*************** BEGIN SPECIAL COMMANDS ***************/
@@ -1198,6 +2598,15 @@ public class Wam {
             writeLn("Memory cleared.");
             return true;
         }
+        if ((s.length() > 5) && (s.substring(0, 5).compareTo("save ") == 0)) {  // write memory to an object file
+            String fileName = s.substring(5).trim();
+            p.removeDeadCode();
+            if (ObjectFile.write(p, fileName))
+                writeLn("" + p.getStatementCount() + " lines of code written to \"" + fileName + "\".");
+            else
+                writeLn("File \"" + fileName + "\" could not be written.");
+            return true;
+        }
         if ((s.length() > 4) && (s.substring(0, 4).compareTo("set ") == 0)) {
             s = s.substring(4);  // set an internal parameter's new value
             int i = s.indexOf(' ');
@@ -1228,8 +2637,7 @@ public class Wam {
                 writeLn(query.toString());
                 writeLn("------ END QUERYCODE ------");
             }
-            p.addProgram(query);  // add query to program in memory and
-            p.updateLabels();  // update the labels for jumping hin und her
+            p.append(query);  // add query to program in memory and link it
         }
 
         // reset the WAM's registers and jump to label "query$" (the current query, of course)
@@ -1256,7 +2664,7 @@ public class Wam {
                 for (int i = 0; i < 100; i++)  // yes, we do not allow more than 100 query variables!
                     if (displayQValue[i]) {
                         cnt++;  // if Q[i] is to be displayed, just do that
-                        write(((Variable) queryVariables.elementAt(i)).name + " = ");
+                        write(displayQName[i] + " = ");
                         write(queryVariables.elementAt(i).toString());
                         if (cnt < displayQCount) write(", ");
                         else writeLn(".");
@@ -1264,7 +2672,7 @@ public class Wam {
             } else
                 writeLn("Success.");
             // if there are any more choicepoints left, ask the user if they shall be tried
-            if (choicePoint != null) {
+            if (choicePoint > 0) {
                 if (GUImode == 0) {
                     write("More? ([y]es/[n]o) ");
                     answer = readLn();
@@ -0,0 +1,107 @@
+package com.wrmsr.jwam2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CodeCacheTest {
+    private static final String PROGRAM =
+            "app([], L, L).\n" +
+            "app([H|T], L, [H|R]) :- app(T, L, R).\n" +
+            "p(1). p(2). p(3).\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String text) throws IOException {
+        File file = folder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // consult consults the file in a new session using the cache and checks the program's answers
+    private void consult(File file, File cache) {
+        Session session = new Session();
+        session.run("set cache=" + cache.getPath());
+        assertEquals("Success.", session.answers("consult('" + file.getPath() + "')."));
+        assertEquals("Success: X = [1, 2, 3].", session.answers("app([1], [2, 3], X)."));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.", session.answers("p(X)."));
+    }
+
+    private File entry(File cache, File file) throws IOException {
+        return new File(cache, CodeCache.key(file.getPath()) + ".wamc");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = write("a.pro", PROGRAM);
+        File cache = folder.newFolder("cache");
+        String key = CodeCache.key(file.getPath());
+        // a miss compiles the file and writes the entry
+        assertFalse(new CodeCache(cache.getPath()).load(key, new Program()));
+        consult(file, cache);
+        assertTrue(entry(cache, file).isFile());
+        // a hit appends the code of all clauses
+        Program program = new Program();
+        assertTrue(new CodeCache(cache.getPath()).load(key, program));
+        assertTrue(program.getStatementCount() > 0);
+        assertTrue(program.getLabelIndex("app") >= 0);
+        consult(file, cache);
+        // a changed file has another key
+        File changed = write("b.pro", PROGRAM + "q(1).\n");
+        assertFalse(key.compareTo(CodeCache.key(changed.getPath())) == 0);
+    }
+
+    @Test
+    public void testVersionMismatch() throws IOException {
+        File file = write("a.pro", PROGRAM);
+        File cache = folder.newFolder("cache");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(entry(cache, file)));
+        try {
+            out.writeInt(CodeCache.MAGIC);
+            out.writeUTF(PrologCompiler.VERSION + "/0000000000000000");
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+        assertFalse(new CodeCache(cache.getPath()).load(CodeCache.key(file.getPath()), new Program()));
+        assertTrue(CodeCache.version().startsWith(PrologCompiler.VERSION + "/"));
+        // the file is compiled again, and its entry replaced
+        consult(file, cache);
+        assertTrue(new CodeCache(cache.getPath()).load(CodeCache.key(file.getPath()), new Program()));
+    }
+
+    @Test
+    public void testCorruptEntry() throws IOException {
+        File file = write("a.pro", PROGRAM);
+        File cache = folder.newFolder("cache");
+        consult(file, cache);
+        File entry = entry(cache, file);
+        RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        // a truncated entry leaves the program unchanged
+        Program program = new Program();
+        assertFalse(new CodeCache(cache.getPath()).load(CodeCache.key(file.getPath()), program));
+        assertEquals(0, program.getStatementCount());
+        consult(file, cache);
+    }
+}
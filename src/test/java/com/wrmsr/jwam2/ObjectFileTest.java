@@ -0,0 +1,101 @@
+package com.wrmsr.jwam2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ObjectFileTest {
+    private static final String PROGRAM =
+            "app([], L, L).\n" +
+            "app([H|T], L, [H|R]) :- app(T, L, R).\n" +
+            "p(1). p(2). p(3).\n" +
+            "big(123456789012345678901234567890). big(2.5). big('hello world').\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // save consults the program, changes p and saves it all to an object file
+    private File save() throws IOException {
+        File source = folder.newFile("a.pro");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write(PROGRAM.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        File file = new File(folder.getRoot(), "a.wamo");
+        Session session = new Session();
+        assertEquals("Success.", session.answers("consult('" + source.getPath() + "')."));
+        assertEquals("Success.", session.answers("assert(p(4))."));
+        assertEquals("Success.", session.answers("retract(p)."));
+        assertEquals("Success.", session.answers("assert(p(5))."));
+        assertTrue(session.run("save " + file.getPath()).indexOf("lines of code written") >= 0);
+        return file;
+    }
+
+    private static void check(Session session) {
+        assertEquals("Success: X = [1, 2, 3].", session.answers("app([1], [2, 3], X)."));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.\nSuccess: X = 5.", session.answers("p(X)."));
+        assertEquals("Success: X = 123456789012345678901234567890.\nSuccess: X = 2.5.\nSuccess: X = hello world.",
+                session.answers("big(X)."));
+        // the dynamic procedure stays one
+        assertEquals("Success.", session.answers("assert(p(6))."));
+        assertEquals("Success.", session.answers("p(6)."));
+        assertEquals("Success.", session.answers("retract(p)."));
+        assertEquals("Failed.", session.answers("p(6)."));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = save();
+        assertTrue(ObjectFile.isObjectFile(file.getPath()));
+        Session session = new Session();
+        assertEquals("Success.", session.answers("load('" + file.getPath() + "')."));
+        check(session);
+    }
+
+    @Test
+    public void testMapped() throws IOException {
+        File file = save();
+        Program read = ObjectFile.read(file.getPath(), null, false);
+        Program mapped = ObjectFile.read(file.getPath(), null, true);
+        assertNotNull(read);
+        assertNotNull(mapped);
+        assertEquals(read.getStatementCount(), mapped.getStatementCount());
+        assertEquals(read.getProcedureCount(), mapped.getProcedureCount());
+        assertEquals(read.toString(), mapped.toString());
+        // a read program runs as it is
+        check(new Session(mapped));
+    }
+
+    @Test
+    public void testRejected() throws IOException {
+        File file = save();
+        long length = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            for (long n = length - 1; n >= 0; n -= Math.max(1, n / 16)) {
+                raf.setLength(n);
+                assertNull("truncated to " + n, ObjectFile.read(file.getPath(), null));
+                assertNull("truncated to " + n, ObjectFile.read(file.getPath(), null, true));
+            }
+        } finally {
+            raf.close();
+        }
+        File text = folder.newFile("b.wam");
+        assertFalse(ObjectFile.isObjectFile(text.getPath()));
+        assertNull(ObjectFile.read(text.getPath(), null));
+        assertFalse(ObjectFile.isObjectFile(new File(folder.getRoot(), "missing").getPath()));
+    }
+}
@@ -0,0 +1,515 @@
+package com.wrmsr.jwam2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class QueryTest {
+    @Test
+    public void testLists() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "app([], L, L).\n" +
+                "app([H|T], L, [H|R]) :- app(T, L, R).\n" +
+                "mem(X, [X|_]).\n" +
+                "mem(X, [_|T]) :- mem(X, T).\n"));
+        assertEquals("Success: X = [1, 2, 3].", session.answers("app([1], [2, 3], X)."));
+        assertEquals("Success: X = [], Y = [1, 2].\nSuccess: X = [1], Y = [2].\nSuccess: X = [1, 2], Y = [].",
+                session.answers("app(X, Y, [1, 2])."));
+        assertEquals("Success: X = a.\nSuccess: X = b.", session.answers("mem(X, [a, b])."));
+        assertEquals("Failed.", session.answers("mem(c, [a, b])."));
+    }
+
+    @Test
+    public void testEnvironments() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "len([], 0).\n" +
+                "len([_|T], N) :- len(T, M), N is M + 1.\n" +
+                "mk(0, []).\n" +
+                "mk(N, [N|T]) :- N > 0, M is N - 1, mk(M, T).\n" +
+                "cnt(K, N) :- mk(K, L), len(L, N).\n" +
+                "p(1). p(2).\n" +
+                "pair(X, Y) :- p(X), p(Y).\n"));
+        // thousands of environments stacked on top of each other
+        assertEquals("Success: N = 5000.", session.answers("cnt(5000, N)."));
+        // an environment is kept as long as a choicepoint may still return into it
+        assertEquals("Success: X = 1, Y = 1.\nSuccess: X = 1, Y = 2.\nSuccess: X = 2, Y = 1.\nSuccess: X = 2, Y = 2.",
+                session.answers("pair(X, Y)."));
+    }
+
+    @Test
+    public void testChoicePoints() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "c(a, X, Y, Z, W) :- X = 1, Y = 2, Z = 3, W = 4.\n" +
+                "c(b, X, Y, Z, W) :- X = 5, Y = 6, Z = 7, W = 8.\n" +
+                "c(a, X, Y, Z, W) :- X = 9, Y = 10, Z = 11, W = 12.\n"));
+        // each alternative starts from the arguments of the call
+        assertEquals("Success: X = 1, Y = 2, Z = 3, W = 4.\nSuccess: X = 9, Y = 10, Z = 11, W = 12.",
+                session.answers("c(a, X, Y, Z, W), Y > 1."));
+        assertEquals("Success: K = b, X = 5, Z = 7, W = 8.", session.answers("c(K, X, 6, Z, W)."));
+    }
+
+    @Test
+    public void testTrail() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "p(1). p(2). p(3).\n" +
+                "q(X, Y) :- p(X), Y = X, X > 1.\n"));
+        // the bindings of variables older than a choicepoint are undone when it is taken
+        assertEquals("Success: X = 2, Y = 2.\nSuccess: X = 3, Y = 3.", session.answers("q(X, Y)."));
+        assertEquals("Success: X = 3, Y = 3.", session.answers("q(X, Y), X > 2."));
+    }
+
+    @Test
+    public void testRetry() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "n(1). n(2). n(3). n(4). n(5).\n" +
+                "two(X, Y) :- n(X), n(Y), Y > 3, X > 4.\n"));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.\nSuccess: X = 4.\nSuccess: X = 5.",
+                session.answers("n(X)."));
+        assertEquals("Success: X = 5, Y = 4.\nSuccess: X = 5, Y = 5.", session.answers("two(X, Y)."));
+    }
+
+    // returns the size of the environment stack after the query, as shown in the benchmark information
+    private static int environmentStack(Session session, String query) {
+        session.run("set benchmark=1");
+        String output = session.run(query);
+        session.run("set benchmark=0");
+        int start = output.indexOf("# environment stack: ") + 21;
+        return Integer.parseInt(output.substring(start, output.indexOf('\n', start)).trim());
+    }
+
+    @Test
+    public void testLastCallOptimization() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "count(N, N) :- !.\n" +
+                "count(I, N) :- J is I + 1, count(J, N).\n" +
+                "down(0).\n" +
+                "down(N) :- N > 0, M is N - 1, down(M), true.\n" +
+                "true.\n"));
+        assertEquals("Success.", session.answers("count(0, 100000)."));
+        // the tail recursive loop runs in constant environment space, the other one does not
+        int small = environmentStack(session, "count(0, 100000).");
+        assertTrue(small <= 1024);
+        assertTrue(environmentStack(session, "down(10000).") > 10000);
+    }
+
+    @Test
+    public void testFirstArgumentIndexing() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "m(a, 1). m(f(x), 2). m(X, 3). m(b, 4). m([1], 5). m(a, 6). m(f(y), 7). m([], 8). m(g(a, b), 9).\n" +
+                "all(N) :- m(X, N).\n"));
+        // a bound first argument only tries the matching clauses and those with a variable, in order
+        assertEquals("Success: N = 1.\nSuccess: N = 3.\nSuccess: N = 6.", session.answers("m(a, N)."));
+        assertEquals("Success: N = 3.\nSuccess: N = 4.", session.answers("m(b, N)."));
+        assertEquals("Success: N = 3.", session.answers("m(c, N)."));
+        assertEquals("Success: N = 2.\nSuccess: N = 3.", session.answers("m(f(x), N)."));
+        assertEquals("Success: N = 3.\nSuccess: N = 7.", session.answers("m(f(y), N)."));
+        assertEquals("Success: N = 3.\nSuccess: N = 9.", session.answers("m(g(a, b), N)."));
+        assertEquals("Success: N = 3.\nSuccess: N = 5.", session.answers("m([1], N)."));
+        assertEquals("Success: N = 3.\nSuccess: N = 8.", session.answers("m([], N)."));
+        // an unbound one tries all of them
+        assertEquals("Success: N = 1.\nSuccess: N = 2.\nSuccess: N = 3.\nSuccess: N = 4.\nSuccess: N = 5.\n" +
+                "Success: N = 6.\nSuccess: N = 7.\nSuccess: N = 8.\nSuccess: N = 9.", session.answers("all(N)."));
+    }
+
+    @Test
+    public void testOtherArgumentIndexing() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "k(1, a). k(2, b). k(3, a). k(4, c). k(5, a). k(6, X). k(7, b). k(8, a). k(9, c). k(10, a).\n"));
+        // a bound second argument of a large procedure only tries the matching clauses, in order
+        assertEquals("Success: N = 1.\nSuccess: N = 3.\nSuccess: N = 5.\nSuccess: N = 6.\nSuccess: N = 8.\n" +
+                "Success: N = 10.", session.answers("k(N, a)."));
+        assertEquals("Success: N = 4.\nSuccess: N = 6.\nSuccess: N = 9.", session.answers("k(N, c)."));
+        assertEquals("Success: N = 6.", session.answers("k(N, z)."));
+        assertEquals("Success: Y = a.", session.answers("k(3, Y)."));
+        assertEquals("Success.", session.answers("k(6, q)."));
+        assertEquals("Failed.", session.answers("k(7, a)."));
+    }
+
+    @Test
+    public void testAtomsAndIntegers() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult("c(abc, 1). c('hello world', 2). c(007, 3).\n"));
+        assertEquals("Success: N = 1.", session.answers("c(abc, N)."));
+        assertEquals("Success: N = 2.", session.answers("c('hello world', N)."));
+        assertEquals("Success: X = hello world.", session.answers("c(X, 2)."));
+        // integers are numbers, whichever way they are written
+        assertEquals("Success: N = 3.", session.answers("c(7, N)."));
+        assertEquals("Success: X = 7.", session.answers("X = 007, X = 7."));
+        assertEquals("Success: X = -2, Y = -6.", session.answers("X is 0 - 2, Y is X * 3."));
+    }
+
+    @Test
+    public void testNumbers() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "n(2.5, a). n(123456789012345678901234567890, b). n(1.50, c). n(3, d). n(3.0, e).\n"));
+        // floats and big integers are numbers of their own kinds, compared by value
+        assertEquals("Success: X = 2.5.", session.answers("n(X, a)."));
+        assertEquals("Success: X = 123456789012345678901234567890.", session.answers("n(X, b)."));
+        assertEquals("Success: N = b.", session.answers("n(123456789012345678901234567890, N)."));
+        assertEquals("Success: N = c.", session.answers("n(1.5, N)."));
+        assertEquals("Success: N = d.", session.answers("n(3, N)."));
+        assertEquals("Success: N = e.", session.answers("n(3.0, N)."));
+        assertEquals("Success: X = 5.0.", session.answers("X is 2.5 * 2."));
+        assertEquals("Success: X = 123456789012345678901234567891.", session.answers("X is 123456789012345678901234567890 + 1."));
+    }
+
+    @Test
+    public void testArithmetic() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult("sq(X, Y) :- Y is X * X.\n"));
+        assertEquals("Success: X = 7.", session.answers("X is (1 + 2) * 3 - 4 / 2."));
+        assertEquals("Success: X = 1.", session.answers("X is 7 mod 3."));
+        assertEquals("Success: X = 9.", session.answers("X is max(3, 7) + abs(0 - 2)."));
+        assertEquals("Success: Y = 49.", session.answers("sq(7, Y)."));
+        // comparisons evaluate both sides
+        assertEquals("Success.", session.answers("1 + 2 < 2 * 2."));
+        assertEquals("Failed.", session.answers("2 * 3 > 3 + 3."));
+        assertEquals("Success: X = 5.", session.answers("X = 5, X * 2 >= 10."));
+    }
+
+    @Test
+    public void testNegation() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "p(1). p(2). p(3).\n" +
+                "np(X) :- \\+ p(X).\n" +
+                "first(X) :- \\+ ( p(Y), !, Y > 1 ), X = yes.\n"));
+        assertEquals("Success.", session.answers("np(4)."));
+        assertEquals("Failed.", session.answers("np(2)."));
+        assertEquals("Success.", session.answers("not p(4)."));
+        // the negated goal may be a conjunction, a parenthesized goal or a unification
+        assertEquals("Success.", session.answers("\\+ ( p(1), p(4) )."));
+        assertEquals("Failed.", session.answers("\\+ ( p(1), p(2) )."));
+        assertEquals("Success.", session.answers("\\+ ( p(4) )."));
+        assertEquals("Success: X = 1.", session.answers("X = 1, \\+ X = 2."));
+        assertEquals("Failed.", session.answers("X = 1, \\+ X = 1."));
+        // the bindings made by the negated goal are undone
+        assertEquals("Success: X = 2.", session.answers("\\+ \\+ X = 1, X = 2."));
+        // a cut inside it only cuts the choicepoints left by the goal
+        assertEquals("Success: X = yes.", session.answers("first(X)."));
+        assertEquals("Success: X = 1.\nSuccess: X = 3.", session.answers("p(X), \\+ X = 2."));
+    }
+
+    @Test
+    public void testControl() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "p(1). p(2). p(3).\n" +
+                "q(2).\n" +
+                "true.\n" +
+                "sign(X, S) :- ( X > 0 -> S = pos ; X < 0 -> S = neg ; S = zero ).\n" +
+                "nested(X, R) :- ( X > 5 -> ( X > 10 -> R = big ; R = mid ) ; R = small ), true.\n" +
+                "soft(X) :- ( p(X) *-> true ; X = none ).\n" +
+                "softn(X) :- ( r(X) *-> true ; X = none ).\n" +
+                "r(X) :- fail.\n" +
+                "free(X, R) :- ( \\+ q(X) -> R = free ; R = taken ).\n" +
+                "odd(X) :- p(X), ( q(X) ; \\+ q(X), X > 2 ).\n" +
+                "cb(X, Y) :- ( X > 0 -> p(Y), ! ; Y = neg ).\n" +
+                "ce(Y) :- ( fail -> true ; p(Y), ! ).\n" +
+                "cd(Y) :- ( Y = 0 ; p(Y), ! ).\n" +
+                "cc(X) :- ( p(X), X > 1, ! ; X = 9 ).\n" +
+                "cc(7).\n" +
+                "c7(X) :- ( p(X), ! -> fail ; true ).\n" +
+                "c7(5).\n" +
+                "c8(X) :- ( !, fail -> X = then ; X = else ).\n" +
+                "c9(X) :- \\+ ( p(Y), !, Y > 1 ), X = yes.\n"));
+        // nested if-then-else
+        assertEquals("Success: S = pos.", session.answers("sign(5, S)."));
+        assertEquals("Success: X = -2, S = neg.", session.answers("X is 0 - 2, sign(X, S)."));
+        assertEquals("Success: S = zero.", session.answers("sign(0, S)."));
+        assertEquals("Success: R = small.", session.answers("nested(1, R)."));
+        assertEquals("Success: R = mid.", session.answers("nested(7, R)."));
+        assertEquals("Success: R = big.", session.answers("nested(12, R)."));
+        assertEquals("Success: X = 2, Y = b.", session.answers("X = 2, ( X = 1 -> Y = a ; ( X = 2 -> Y = b ; Y = c ) )."));
+        // the condition is only solved once, but a disjunction leaves its alternatives
+        assertEquals("Success: X = 1, Y = 1.", session.answers("( ( X = 1 ; X = 2 ) -> Y = X ; Y = none )."));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.", session.answers("( X = 1 ; X = 2 ; X = 3 )."));
+        // soft-cut
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.", session.answers("soft(X)."));
+        assertEquals("Success: X = none.", session.answers("softn(X)."));
+        assertEquals("Success: X = 1, Y = 1.\nSuccess: X = 2, Y = 2.",
+                session.answers("( ( X = 1 ; X = 2 ) *-> Y = X ; Y = none )."));
+        // negation in conditions and disjunctions
+        assertEquals("Success: R = free.", session.answers("free(1, R)."));
+        assertEquals("Success: R = taken.", session.answers("free(2, R)."));
+        assertEquals("Success: X = 2.\nSuccess: X = 3.", session.answers("odd(X)."));
+        assertEquals("Success: X = 1.\nSuccess: X = 3.", session.answers("p(X), \\+ q(X)."));
+        // cut inside branches cuts the whole clause
+        assertEquals("Success: Y = 1.", session.answers("cb(1, Y)."));
+        assertEquals("Success: Y = neg.", session.answers("cb(0, Y)."));
+        assertEquals("Success: Y = 1.", session.answers("ce(Y)."));
+        assertEquals("Success: Y = 0.\nSuccess: Y = 1.", session.answers("cd(Y)."));
+        assertEquals("Success: X = 2.", session.answers("cc(X)."));
+        // but a cut inside a condition or a negation only cuts the choicepoints left inside it
+        assertEquals("Success: X = 5.", session.answers("c7(X)."));
+        assertEquals("Success: X = else.", session.answers("c8(X)."));
+        assertEquals("Success: X = yes.", session.answers("c9(X)."));
+    }
+
+    // returns the number of trail entries left after the query, as shown in the benchmark information
+    private static int trailLength(Session session, String query) {
+        session.run("set benchmark=1");
+        String output = session.run(query);
+        session.run("set benchmark=0");
+        int start = output.indexOf("# trail: ") + 9;
+        return Integer.parseInt(output.substring(start, output.indexOf('\n', start)).trim());
+    }
+
+    @Test
+    public void testCutTidiesTrail() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "p(1). p(2). p(3).\n" +
+                "s(1). s(2).\n" +
+                "true.\n" +
+                "t(X) :- s(Y), X = Y, !.\n" +
+                "tr(X, Y) :- s(Y), !.\n" +
+                "run(N) :- ( N > 0 -> t(X), M is N - 1, run(M) ; true ).\n"));
+        // bindings made before the cut are still undone by older choicepoints
+        assertEquals("Success: X = 3, Y = 1.", session.answers("p(X), tr(X, Y), X > 2."));
+        assertEquals("Success: X = 1.", session.answers("t(X)."));
+        // the entries of bindings no remaining choicepoint needs undone are dropped by the cut
+        assertEquals("Success.", session.answers("run(10000)."));
+        assertTrue(trailLength(session, "run(10000).") < 100);
+    }
+
+    @Test
+    public void testLongLists() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "mk(0, []) :- !.\n" +
+                "mk(N, [N|T]) :- M is N - 1, mk(M, T).\n" +
+                "same :- mk(200000, L), mk(200000, K), L = K.\n" +
+                "mk0(0, [0]) :- !.\n" +
+                "mk0(N, [N|T]) :- M is N - 1, mk0(M, T).\n" +
+                "other :- mk(200000, L), mk0(200000, K), L = K.\n" +
+                "big(L) :- mk(200000, L).\n"));
+        // terms this deep are unified and printed without running out of stack
+        assertEquals("Success.", session.answers("same."));
+        assertEquals("Failed.", session.answers("other."));
+        String answer = session.answers("big(L).");
+        assertTrue(answer.startsWith("Success: L = [200000, 199999, "));
+        assertTrue(answer.endsWith(", 2, 1]."));
+    }
+
+    @Test
+    public void testStructures() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "h(f(a), 1). h(f(a, b), 2). h(g(a, b), 3). h(f(c, d), 4).\n" +
+                "arg2(f(_, Y), Y).\n"));
+        // structures of the same name and another arity are told apart
+        assertEquals("Success: N = 1.", session.answers("h(f(a), N)."));
+        assertEquals("Success: N = 2.", session.answers("h(f(a, b), N)."));
+        assertEquals("Success: N = 4.", session.answers("h(f(c, _), N)."));
+        assertEquals("Success: Y = g(b, [1, 2]).", session.answers("arg2(f(a, g(b, [1, 2])), Y)."));
+        assertEquals("Success: X = f(a, g(b, c), [1, 2]), C = c, A = a.",
+                session.answers("X = f(a, g(b, C), [1, 2]), X = f(A, g(b, c), _)."));
+        assertEquals("Failed.", session.answers("f(a, b) = f(a, b, c)."));
+    }
+
+    @Test
+    public void testVariableFunctors() {
+        Session session = new Session();
+        assertEquals("Failed.", session.answers("X = F(a), Y = G(a), X = Y, F = foo, G = bar."));
+        assertEquals("Success: X = foo(a), F = foo, Y = foo(a), G = foo.",
+                session.answers("X = F(a), Y = G(a), X = Y, F = foo, G = foo."));
+        assertEquals("Success: X = foo(a), F = foo, Z = a.", session.answers("X = F(a), X = foo(Z)."));
+        assertEquals("Failed.", session.answers("X = F(a), X = foo(b)."));
+    }
+
+    @Test
+    public void testListSegments() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "len(L, N) :- count(L, 0, N).\n" +
+                "count([], N, N).\n" +
+                "count([_|T], I, N) :- I < N, J is I + 1, count(T, J, N).\n" +
+                "nth(1, [X|_], X) :- !.\n" +
+                "nth(N, [_|T], X) :- M is N - 1, nth(M, T, X).\n" +
+                "last([X], X) :- !.\n" +
+                "last([_|T], X) :- last(T, X).\n"));
+        assertEquals("Success: L = [a, b].", session.answers("len(L, 2), L = [a, b]."));
+        assertEquals("Failed.", session.answers("len([a, b, c], 2)."));
+        assertEquals("Success: X = c.", session.answers("nth(3, [a, b, c, d], X)."));
+        assertEquals("Success: X = 40.", session.answers("nth(4, [10, 20, 30, 40, 50], X)."));
+        assertEquals("Success: X = e.", session.answers("last([a, b, c, d, e], X)."));
+        assertEquals("Success: X = 5.", session.answers("last([1, 2, 3, 4, 5], X)."));
+        // a list literal unifies with a partial list, element by element
+        assertEquals("Success: A = 1, B = 2, T = [2].", session.answers("[A, B] = [1|T], T = [2]."));
+        assertEquals("Success: T = [2, 3].", session.answers("[1, 2, 3] = [1|T]."));
+        assertEquals("Failed.", session.answers("[1, 2, 3] = [1, 2]."));
+        assertEquals("Success: X = [1, 2, 3, 4].", session.answers("X = [1, 2, 3, 4], X = [_, _|_]."));
+    }
+
+    private static final String DYNAMIC =
+            "p(1). p(2). p(3).\n" +
+            "e(X, Y) :- Y is X + 1.\n" +
+            "fill(0) :- !.\n" +
+            "fill(N) :- K is N mod 3, assert(h(N, K)), M is N - 1, fill(M).\n" +
+            "drop(0) :- !.\n" +
+            "drop(N) :- retract(h), M is N - 1, drop(M).\n";
+
+    // returns the number of lines of code in memory, as shown by help
+    private static int lines(Session session) {
+        String help = session.run("help");
+        int end = help.indexOf(" lines of code in memory.");
+        return Integer.parseInt(help.substring(help.lastIndexOf('\n', end) + 1, end).trim());
+    }
+
+    @Test
+    public void testConsultedProceduresBecomeDynamic() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(DYNAMIC));
+        // retract removes the last clause of a consulted procedure
+        assertEquals("Success.", session.answers("retract(p)."));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.", session.answers("p(X)."));
+        assertEquals("Success.", session.answers("assert(p(2))."));
+        assertEquals("Success.\nSuccess.", session.answers("p(2)."));
+        assertEquals("Failed.", session.answers("p(3)."));
+        // a consulted rule and an asserted fact
+        assertEquals("Success.", session.answers("assert(e(a, b))."));
+        assertEquals("Success: Y = 2.", session.answers("e(1, Y)."));
+        assertEquals("Success: Y = b.", session.answers("e(a, Y)."));
+    }
+
+    @Test
+    public void testLogicalUpdateView() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(DYNAMIC));
+        // the call of p still sees the clauses retracted after it started
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.", session.answers("p(X), retract(p)."));
+        assertEquals("Failed.", session.answers("p(X)."));
+        // nor the clause asserted meanwhile, which only later calls see
+        assertEquals("Success.", session.answers("assert(p(1))."));
+        assertEquals("Success: X = 1, Y = 1.\nSuccess: X = 1, Y = 5.", session.answers("p(X), assert(p(5)), p(Y)."));
+    }
+
+    @Test
+    public void testCompactAndIndexes() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(DYNAMIC));
+        assertEquals("Success.", session.answers("fill(20)."));
+        // the second argument index of the dynamic procedure h
+        assertEquals("Success: X = 20.\nSuccess: X = 17.\nSuccess: X = 14.\nSuccess: X = 11.\nSuccess: X = 8.\n" +
+                "Success: X = 5.\nSuccess: X = 2.", session.answers("h(X, 2)."));
+        assertEquals("Success: K = 1.", session.answers("h(7, K)."));
+        // it stays consistent with retract and assert
+        assertEquals("Success.", session.answers("drop(12)."));
+        assertEquals("Success: X = 20.\nSuccess: X = 17.\nSuccess: X = 14.", session.answers("h(X, 2)."));
+        assertEquals("Success.", session.answers("fill(3)."));
+        assertEquals("Success: X = 18.\nSuccess: X = 15.\nSuccess: X = 3.", session.answers("h(X, 0)."));
+        // retracting most of the clauses compacts the code, renumbering the clauses
+        assertEquals("Success.", session.answers("fill(200)."));
+        int before = lines(session);
+        assertEquals("Success.", session.answers("drop(200)."));
+        assertEquals(true, lines(session) < before / 2);
+        assertEquals("Success: X = 20.\nSuccess: X = 17.\nSuccess: X = 14.\nSuccess: X = 2.",
+                session.answers("h(X, 2)."));
+        assertEquals("Success: K = 1.", session.answers("h(13, K)."));
+        assertEquals("Success.", session.answers("fill(2)."));
+        assertEquals("Success: X = 20.\nSuccess: X = 17.\nSuccess: X = 14.\nSuccess: X = 2.\nSuccess: X = 2.",
+                session.answers("h(X, 2)."));
+    }
+
+    @Test
+    public void testAssertTerms() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "af :- assert(f(X, X)).\n" +
+                "ah :- assert(h([1, 2|T], s(T), 123456789012345678901234567890)).\n"));
+        // a repeated variable stays one variable in the asserted fact
+        assertEquals("Success.", session.answers("af."));
+        assertEquals("Failed.", session.answers("f(1, 2)."));
+        assertEquals("Success: Y = 3.", session.answers("f(3, Y)."));
+        // atoms that need quotes and floats keep their values
+        assertEquals("Success.", session.answers("assert(g('hello world', 2.5))."));
+        assertEquals("Success: X = hello world, Y = 2.5.", session.answers("g(X, Y)."));
+        assertEquals("Success.", session.answers("g('hello world', 2.5)."));
+        assertEquals("Success.", session.answers("assert(k(1.0))."));
+        assertEquals("Failed.", session.answers("k(1)."));
+        assertEquals("Success.", session.answers("ah."));
+        assertEquals("Success: L = [1, 2, 3], S = s([3]).",
+                session.answers("h(L, S, 123456789012345678901234567890), L = [_, _, 3]."));
+    }
+
+    @Test
+    public void testIncrementalLinking() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult("a(X) :- b(X).\n"));
+        assertEquals("Failed.", session.answers("a(1)."));
+        // a later consult defines the procedure called by the code in memory
+        assertEquals("Success.", session.consult("b(1). b(2).\n"));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.", session.answers("a(X)."));
+        // each query's code is removed again afterwards
+        int before = lines(session);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Success: X = 2.", session.answers("a(X), X > " + (i % 2) + ", X > 1."));
+        }
+        assertEquals(before, lines(session));
+        assertEquals("Success.", session.answers("assert(b(3))."));
+        assertEquals("Success: X = 1.\nSuccess: X = 2.\nSuccess: X = 3.", session.answers("a(X)."));
+    }
+
+    @Test
+    public void testParser() throws IOException {
+        Session session = new Session();
+        assertEquals("Success.", session.consult(
+                "t('a b', 1).\n" +
+                "t(f(g(h(a)), [b, c|[d]]), 2).\n" +
+                "t(X, 3) :- ( X = 1 -> true ; \\+ X = 2 ).\n" +
+                "true.\n"));
+        assertEquals("Success: X = g(h(a)), T = [c, d].", session.answers("t(f(X, [b|T]), 2)."));
+        assertEquals("Success: X = a b.", session.answers("t(X, 1)."));
+        assertEquals("Success: N = 3.", session.answers("t(1, N)."));
+        assertEquals("Success: X = 1.5, Y = 0.0015.", session.answers("X = 1.5, Y = 1.5e-3."));
+        assertEquals("Success: X = 7.", session.answers("X is (1 + (2 * 3))."));
+        assertEquals("Failed.", session.answers("t(2, 3)."));
+    }
+
+    @Test
+    public void testConsultErrors() throws IOException {
+        Session session = new Session();
+        // a syntax error in the middle of the file fails the consult
+        assertEquals("Failed.", session.consult("a(1).\nb(2 :- .\nc(3).\n"));
+        assertEquals("Failed.", session.consult("a(1).\nb(2).\nc(3\n"));
+        assertEquals("Success.", session.consult("a(1).\nb(2).\n\nc(3).\n"));
+        assertEquals("Success: X = 3.", session.answers("c(X)."));
+    }
+
+    // returns a program of n facts of each of a and b, interleaved, with a syntax error at fact bad
+    private static String facts(int n, int bad) {
+        StringBuffer program = new StringBuffer();
+        for (int i = 0; i < n; i++) {
+            program.append((i == bad) ? "a(" + i + " .\n" : "a(" + i + ").\n");
+            program.append("b(" + (n - i) + ").\n");
+        }
+        return program.toString();
+    }
+
+    @Test
+    public void testParallelConsult() throws IOException {
+        Session session = new Session();
+        // the clauses of a large file are compiled in parallel, but keep their order
+        assertEquals("Success.", session.consult(facts(6000, -1)));
+        assertEquals("Success: X = 0.\nSuccess: X = 1.\nSuccess: X = 2.", session.answers("a(X), X < 3."));
+        assertEquals("Success: X = 5997.\nSuccess: X = 5998.\nSuccess: X = 5999.", session.answers("a(X), X > 5996."));
+        assertEquals("Success: X = 3.\nSuccess: X = 2.\nSuccess: X = 1.", session.answers("b(X), X < 4."));
+        assertEquals("Success: X = 3000.", session.answers("a(X), X > 2999, !."));
+        // a syntax error anywhere fails the consult
+        assertEquals("Failed.", new Session().consult(facts(6000, 3000)));
+        assertEquals("Failed.", new Session().consult(facts(6000, 5999)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.wrmsr.jwam2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+// Session runs queries on a WAM in text mode, asks for every answer and returns what the WAM wrote
+public class Session {
+    public static final int MAX_ANSWERS = 100;  // the last "More?" prompt is answered with "n"
+
+    public final Wam wam;
+
+    public Session() {
+        this(new Program());
+    }
+
+    // runs the queries on the given program
+    public Session(Program program) {
+        wam = new Wam(program);
+        program.owner = wam;
+    }
+
+    // consult writes the program text to a temporary file and consults it, returning the answer
+    public String consult(String program) throws IOException {
+        File file = File.createTempFile("session", ".pro");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(program.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return answers("consult('" + file.getPath() + "').");
+    }
+
+    // answers returns the "Success: ..." lines of the query, one per line, or "Failed." if it has no
+    // solution. Whether the last solution is followed by "Failed." depends on the choicepoints left,
+    // so that line is dropped otherwise
+    public String answers(String query) {
+        String output = run(query);
+        String[] lines = output.split("\n");
+        StringBuffer result = new StringBuffer();
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            int prompt = line.lastIndexOf("More? ([y]es/[n]o) ");
+            if (prompt >= 0) {
+                line = line.substring(prompt + 19);
+            }
+            if (line.startsWith("Success")) {
+                if (result.length() > 0) {
+                    result.append("\n");
+                }
+                result.append(line);
+            }
+        }
+        if (result.length() > 0) {
+            return result.toString();
+        }
+        return (output.indexOf("Failed.") >= 0) ? "Failed." : output.trim();
+    }
+
+    // run runs the query (or command) and returns everything the WAM wrote
+    public String run(String query) {
+        PrintStream out = System.out;
+        InputStream in = System.in;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(buffer, true, "UTF-8"));
+            System.setIn(new Answers());
+            wam.runQuery(query);
+            return buffer.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } finally {
+            System.setOut(out);
+            System.setIn(in);
+        }
+    }
+
+    // Answers hands out one answer line per read, as the WAM reads every answer with a new reader
+    private static class Answers extends InputStream {
+        private byte[] line = new byte[0];
+        private int position;
+        private int count;
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : b[0];
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == line.length) {
+                line = ((++count < MAX_ANSWERS) ? "y\n" : "n\n").getBytes("UTF-8");
+                position = 0;
+            }
+            int n = Math.min(len, line.length - position);
+            System.arraycopy(line, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}